@@ -0,0 +1,178 @@
+package net.tmclean.pxeserver.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.tmclean.pxeserver.tftp.NioTFTPServer;
+import net.tmclean.pxeserver.tftp.TFTPFileResolver;
+import net.tmclean.pxeserver.tftp.TFTPMetrics;
+import net.tmclean.pxeserver.tftp.TFTPServer;
+import net.tmclean.pxeserver.util.DaemonService;
+
+/**
+ * Simulates a rack rebooting at once: N clients request the same file at the
+ * same time from a TFTP server started in this JVM on a loopback port, then
+ * reports aggregate throughput, time to complete and the CPU the server used.
+ *
+ *   java -cp target/benchmarks.jar net.tmclean.pxeserver.bench.BootStormLoadGenerator \
+ *       clients=100 fileSize=33554432 blksize=1428 windowsize=16 loss=0.01 engine=nio
+ *
+ * The engine is commons-net (a thread pool), nio (the single selector thread)
+ * or virtual (commons-net with a virtual thread per session, JDK 21 or later).
+ * A comma separated list runs each in turn against the same storm, e.g.
+ * engine=nio,virtual clients=2000 to compare the event loop with virtual threads.
+ *
+ * Server CPU is the process CPU time less what the client threads used, so
+ * keep other load off the machine while it runs.
+ */
+public class BootStormLoadGenerator {
+
+	private static final String FILE_PATH = "boot/initrd";
+
+	public static void main( String[] args ) throws Exception {
+		Map<String, String> config = new HashMap<>();
+		for( String arg : args ) {
+			int eq = arg.indexOf( '=' );
+			if( eq < 0 ) {
+				throw new IllegalArgumentException( "Expected key=value, got " + arg );
+			}
+			config.put( arg.substring( 0, eq ), arg.substring( eq + 1 ) );
+		}
+
+		int    clients    = Integer.parseInt( config.getOrDefault( "clients", "40" ) );
+		long   fileSize   = Long.parseLong( config.getOrDefault( "fileSize", String.valueOf( 32L << 20 ) ) );
+		int    blockSize  = Integer.parseInt( config.getOrDefault( "blksize", "1428" ) );
+		int    windowSize = Integer.parseInt( config.getOrDefault( "windowsize", "16" ) );
+		double loss       = Double.parseDouble( config.getOrDefault( "loss", "0" ) );
+		String engines    = config.getOrDefault( "engine", "commons-net" );
+		int    port       = Integer.parseInt( config.getOrDefault( "port", "6969" ) );
+
+		// Servers read their limits from system properties, which must be in place before they load
+		System.setProperty( "pxeserver.tftp.port", String.valueOf( port ) );
+		System.setProperty( "pxeserver.tftp.maxBlockSize", config.getOrDefault( "maxBlockSize", "65464" ) );
+		System.setProperty( "pxeserver.tftp.maxWindowSize", config.getOrDefault( "maxWindowSize", "64" ) );
+		System.setProperty( "pxeserver.tftp.maxSessions", String.valueOf( Math.max( clients, 1024 ) ) );
+
+		InMemoryImageContentDirectory contentDirectory = new InMemoryImageContentDirectory();
+		contentDirectory.addFile( FILE_PATH, fileSize );
+		TFTPFileResolver fileResolver = new TFTPFileResolver( new InMemoryImageRepository(), contentDirectory );
+
+		for( String engine : engines.split( "," ) ) {
+			DaemonService server = newServer( engine.trim(), contentDirectory, fileResolver );
+			server.init();
+
+			try {
+				// Give the listener a moment to bind before the storm starts
+				Thread.sleep( 500 );
+				run( new InetSocketAddress( InetAddress.getLoopbackAddress(), port ), clients, blockSize, windowSize, loss, engine.trim() );
+			}
+			finally {
+				server.destroy();
+			}
+		}
+	}
+
+	private static DaemonService newServer( String engine, InMemoryImageContentDirectory contentDirectory, TFTPFileResolver fileResolver ) throws IOException {
+		switch( engine ) {
+			case "commons-net":
+				System.setProperty( "pxeserver.tftp.sessionThreads", "platform" );
+				return new TFTPServer( contentDirectory, fileResolver, new TFTPMetrics() );
+			case "virtual":
+				System.setProperty( "pxeserver.tftp.sessionThreads", "virtual" );
+				return new TFTPServer( contentDirectory, fileResolver, new TFTPMetrics() );
+			case "nio":
+				return new NioTFTPServer( contentDirectory, fileResolver, new TFTPMetrics() );
+			default:
+				throw new IllegalArgumentException( "Unknown engine " + engine );
+		}
+	}
+
+	private static void run( InetSocketAddress server, int clients, int blockSize, int windowSize, double loss, String engine ) throws InterruptedException {
+
+		ExecutorService executor = Executors.newFixedThreadPool( clients );
+		try {
+			List<TFTPLoadClient> fleet = new ArrayList<>( clients );
+			for( int i = 0; i < clients; i++ ) {
+				fleet.add( new TFTPLoadClient( server, "/" + FILE_PATH, blockSize, windowSize, loss ) );
+			}
+
+			long cpuStart = getProcessCpuTime();
+			long start    = System.nanoTime();
+
+			List<Future<TFTPLoadClient.Result>> futures = executor.invokeAll( fleet );
+
+			long elapsed = System.nanoTime() - start;
+			long cpu     = getProcessCpuTime() - cpuStart;
+
+			List<TFTPLoadClient.Result> results = new ArrayList<>( clients );
+			int failed = 0;
+			for( Future<TFTPLoadClient.Result> future : futures ) {
+				try {
+					results.add( future.get() );
+				}
+				catch( ExecutionException e ) {
+					System.out.println( "Client failed: " + e.getCause().getMessage() );
+					failed++;
+				}
+			}
+
+			report( results, failed, elapsed, cpu, blockSize, windowSize, loss, engine );
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void report( List<TFTPLoadClient.Result> results, int failed, long elapsed, long cpu, int blockSize, int windowSize, double loss, String engine ) {
+		long bytes      = 0;
+		long clientCpu  = 0;
+		long timeouts   = 0;
+		long[] times    = new long[ results.size() ];
+
+		for( int i = 0; i < results.size(); i++ ) {
+			TFTPLoadClient.Result result = results.get( i );
+			bytes     += result.getBytes();
+			clientCpu += result.getCpuNanos();
+			timeouts  += result.getTimeouts();
+			times[i]   = result.getElapsedNanos();
+		}
+		Arrays.sort( times );
+
+		double seconds   = elapsed / 1e9;
+		double serverCpu = Math.max( 0, cpu - clientCpu ) / 1e9;
+
+		System.out.println();
+		System.out.println( String.format( "engine=%s blksize=%d windowsize=%d loss=%.3f", engine, blockSize, windowSize, loss ) );
+		System.out.println( String.format( "clients:     %d ok, %d failed, %d timeouts", results.size(), failed, timeouts ) );
+		System.out.println( String.format( "throughput:  %.1f MB/s (%d MB in %.2f s)", bytes / seconds / (1 << 20), bytes >> 20, seconds ) );
+		System.out.println( String.format( "completion:  p50 %.1f ms, p99 %.1f ms, max %.1f ms", percentile( times, 0.50 ), percentile( times, 0.99 ), percentile( times, 1.0 ) ) );
+		System.out.println( String.format( "server CPU:  %.2f s (%.0f%% of one core)", serverCpu, 100 * serverCpu / seconds ) );
+	}
+
+	private static double percentile( long[] sorted, double p ) {
+		if( sorted.length == 0 ) {
+			return 0;
+		}
+		int index = (int)Math.ceil( p * sorted.length ) - 1;
+		return sorted[ Math.max( 0, Math.min( sorted.length - 1, index ) ) ] / 1e6;
+	}
+
+	private static long getProcessCpuTime() {
+		java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if( os instanceof com.sun.management.OperatingSystemMXBean ) {
+			return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+		}
+		return 0;
+	}
+}
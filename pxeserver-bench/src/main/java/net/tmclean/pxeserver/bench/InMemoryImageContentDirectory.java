@@ -0,0 +1,116 @@
+package net.tmclean.pxeserver.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.tmclean.pxeserver.image.Image;
+import net.tmclean.pxeserver.image.ImageFileEntry;
+import net.tmclean.pxeserver.image.aggregate.ImageContentDirectory;
+
+/**
+ * Serves synthetic files of any length from a small repeating pattern, so
+ * benchmarks measure the TFTP path rather than the disk.
+ */
+public class InMemoryImageContentDirectory implements ImageContentDirectory {
+
+	private static final int PATTERN_SIZE = 1 << 20;
+
+	private final byte[] pattern = new byte[ PATTERN_SIZE ];
+	private final Map<String, Long> files = new ConcurrentHashMap<>();
+	private final Map<Long, Long> filesById = new ConcurrentHashMap<>();
+
+	public InMemoryImageContentDirectory() {
+		for( int i = 0; i < pattern.length; i++ ) {
+			pattern[i] = (byte)(i * 31);
+		}
+	}
+
+	public void addFile( String filePath, long length ) {
+		this.files.put( filePath, length );
+		this.filesById.put( toRow( filePath ), length );
+	}
+
+	@Override
+	public void init() throws IOException {}
+
+	@Override
+	public void destroy() throws IOException {}
+
+	@Override
+	public long getImageFileSize( Image image, String filePath ) throws IOException {
+		return getLength( filePath );
+	}
+
+	@Override
+	public boolean imageFilePathExists( Image image, String filePath ) throws IOException {
+		return this.files.containsKey( filePath );
+	}
+
+	@Override
+	public ImageFileEntry getFileEntry( Image image, String filePath ) throws IOException {
+		ImageFileEntry entry = new ImageFileEntry();
+		entry.setName( filePath.substring( filePath.lastIndexOf( '/' ) + 1 ) );
+		entry.setPath( filePath );
+		entry.setLength( getLength( filePath ) );
+		return entry;
+	}
+
+	@Override
+	public long filePathToId( Image image, String filePath ) throws IOException {
+		return image.getId() | toRow( filePath );
+	}
+
+	private static long toRow( String filePath ) {
+		return filePath.hashCode() & 0x00ffffffL;
+	}
+
+	@Override
+	public String idToFilePath( Image image, long id ) throws IOException {
+		throw new IOException( "Not supported" );
+	}
+
+	@Override
+	public List<String> listImagePath( Image image, String filePath ) throws IOException {
+		return new ArrayList<>( this.files.keySet() );
+	}
+
+	@Override
+	public int readImageFile( Image image, String filePath, byte[] data, long offset, int length ) throws IOException {
+		return read( getLength( filePath ), data, offset, length );
+	}
+
+	@Override
+	public int readImageFileById( Image image, long fileId, byte[] data, long offset, int length ) throws IOException {
+		Long fileLength = this.filesById.get( fileId & 0x00ffffffL );
+		if( fileLength == null ) {
+			throw new IOException( "File id " + Long.toHexString( fileId ) + " not found" );
+		}
+		return read( fileLength, data, offset, length );
+	}
+
+	private int read( long fileLength, byte[] data, long offset, int length ) {
+		long remaining = fileLength - offset;
+		int count = (int)Math.max( 0, Math.min( Math.min( length, data.length ), remaining ) );
+
+		int copied = 0;
+		while( copied < count ) {
+			int patternOffset = (int)((offset + (long)copied) % PATTERN_SIZE);
+			int chunk = Math.min( count - copied, PATTERN_SIZE - patternOffset );
+			System.arraycopy( pattern, patternOffset, data, copied, chunk );
+			copied += chunk;
+		}
+
+		return count;
+	}
+
+	private long getLength( String filePath ) throws IOException {
+		Long length = this.files.get( filePath );
+		if( length == null ) {
+			throw new IOException( "File " + filePath + " not found" );
+		}
+		return length;
+	}
+}
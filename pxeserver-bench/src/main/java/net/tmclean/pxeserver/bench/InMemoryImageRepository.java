@@ -0,0 +1,46 @@
+package net.tmclean.pxeserver.bench;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.tmclean.pxeserver.image.Image;
+import net.tmclean.pxeserver.image.ImageFormat;
+import net.tmclean.pxeserver.image.ImageRepository;
+
+/**
+ * A repository holding just the root image, for serving an
+ * {@link InMemoryImageContentDirectory} without an image database.
+ */
+public class InMemoryImageRepository implements ImageRepository {
+
+	private final Image root = new Image();
+
+	public InMemoryImageRepository() {
+		root.setId( 1L << 24 );
+		root.setName( "/" );
+		root.setDescription( "Benchmark root image" );
+		root.setRoot( true );
+		root.setFormat( ImageFormat.LOCAL_DIR );
+		root.setLocation( "memory" );
+	}
+
+	@Override
+	public List<Image> getAllImages() {
+		return Collections.singletonList( root );
+	}
+
+	@Override
+	public Image getImage( String name ) {
+		return root.getName().equals( name ) ? root : null;
+	}
+
+	@Override
+	public Image getImage( long id ) {
+		return root.getId() == id ? root : null;
+	}
+
+	@Override
+	public Image getRootImage() {
+		return root;
+	}
+}
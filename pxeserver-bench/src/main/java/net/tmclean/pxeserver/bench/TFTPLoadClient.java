@@ -0,0 +1,235 @@
+package net.tmclean.pxeserver.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A simulated PXE client downloading one file over TFTP with the blksize,
+ * windowsize and tsize options, the way iPXE and modern firmware do. Loss is
+ * injected on both directions by dropping received DATA and outgoing ACKs.
+ */
+public class TFTPLoadClient implements Callable<TFTPLoadClient.Result> {
+
+	private static final int RRQ   = 1;
+	private static final int DATA  = 3;
+	private static final int ACK   = 4;
+	private static final int ERROR = 5;
+	private static final int OACK  = 6;
+
+	private static final int DEFAULT_BLOCK_SIZE = 512;
+	private static final int TIMEOUT_MILLIS     = 1000;
+	private static final int MAX_RETRIES        = 5;
+
+	public static final class Result {
+		private final long bytes;
+		private final long elapsedNanos;
+		private final long cpuNanos;
+		private final int  timeouts;
+
+		private Result( long bytes, long elapsedNanos, long cpuNanos, int timeouts ) {
+			this.bytes = bytes;
+			this.elapsedNanos = elapsedNanos;
+			this.cpuNanos = cpuNanos;
+			this.timeouts = timeouts;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		public long getCpuNanos() {
+			return cpuNanos;
+		}
+
+		public int getTimeouts() {
+			return timeouts;
+		}
+	}
+
+	private final InetSocketAddress server;
+	private final String fileName;
+	private final int blockSize;
+	private final int windowSize;
+	private final double loss;
+
+	private DatagramSocket socket;
+	private InetSocketAddress transferId;
+	private final byte[] ack = new byte[ 4 ];
+
+	public TFTPLoadClient( InetSocketAddress server, String fileName, int blockSize, int windowSize, double loss ) {
+		this.server = server;
+		this.fileName = fileName;
+		this.blockSize = blockSize;
+		this.windowSize = windowSize;
+		this.loss = loss;
+	}
+
+	@Override
+	public Result call() throws IOException {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		long start    = System.nanoTime();
+		long cpuStart = threads.getCurrentThreadCpuTime();
+
+		try( DatagramSocket socket = new DatagramSocket() ) {
+			this.socket = socket;
+			socket.setSoTimeout( TIMEOUT_MILLIS );
+
+			byte[] request = buildRequest();
+			socket.send( new DatagramPacket( request, request.length, server ) );
+
+			byte[] buffer = new byte[ 4 + Math.max( blockSize, DEFAULT_BLOCK_SIZE ) ];
+			DatagramPacket datagram = new DatagramPacket( buffer, buffer.length );
+
+			int  negotiatedBlockSize  = DEFAULT_BLOCK_SIZE;
+			int  negotiatedWindowSize = 1;
+			long expected = 1;
+			long acked    = 0;
+			long bytes    = 0;
+			boolean gapAcked = false;
+
+			int retries  = 0;
+			int timeouts = 0;
+
+			while( true ) {
+				try {
+					datagram.setLength( buffer.length );
+					socket.receive( datagram );
+				}
+				catch( SocketTimeoutException e ) {
+					timeouts++;
+					if( ++retries > MAX_RETRIES ) {
+						throw new IOException( "Transfer of " + fileName + " timed out after block " + (expected - 1) );
+					}
+
+					if( transferId == null ) {
+						socket.send( new DatagramPacket( request, request.length, server ) );
+					}
+					else {
+						sendAck( acked );
+					}
+					continue;
+				}
+
+				if( transferId == null ) {
+					transferId = (InetSocketAddress)datagram.getSocketAddress();
+				}
+				else if( !transferId.equals( datagram.getSocketAddress() ) ) {
+					continue;
+				}
+
+				int opcode = ((buffer[0] & 0xff) << 8) | (buffer[1] & 0xff);
+
+				if( opcode == ERROR ) {
+					throw new IOException( "Server error " + getShort( buffer, 2 ) + ": " + new String( buffer, 4, Math.max( 0, datagram.getLength() - 5 ), StandardCharsets.US_ASCII ) );
+				}
+
+				if( opcode == OACK ) {
+					String[] options = new String( buffer, 2, datagram.getLength() - 2, StandardCharsets.US_ASCII ).split( "\0" );
+					for( int i = 0; i + 1 < options.length; i += 2 ) {
+						if( "blksize".equalsIgnoreCase( options[i] ) ) {
+							negotiatedBlockSize = Integer.parseInt( options[i + 1] );
+						}
+						else if( "windowsize".equalsIgnoreCase( options[i] ) ) {
+							negotiatedWindowSize = Integer.parseInt( options[i + 1] );
+						}
+					}
+
+					retries = 0;
+					sendAck( 0 );
+					continue;
+				}
+
+				if( opcode != DATA || dropped() ) {
+					continue;
+				}
+
+				int length = datagram.getLength() - 4;
+
+				if( getShort( buffer, 2 ) != (expected & 0xffff) ) {
+					// RFC 7440, a gap in the window is answered once with the last block received in order
+					if( !gapAcked ) {
+						sendAck( expected - 1 );
+						acked = expected - 1;
+						gapAcked = true;
+					}
+					continue;
+				}
+
+				retries  = 0;
+				gapAcked = false;
+				bytes   += length;
+
+				if( length < negotiatedBlockSize ) {
+					sendAck( expected );
+					return new Result( bytes, System.nanoTime() - start, threads.getCurrentThreadCpuTime() - cpuStart, timeouts );
+				}
+
+				if( expected - acked >= negotiatedWindowSize ) {
+					sendAck( expected );
+					acked = expected;
+				}
+				expected++;
+			}
+		}
+	}
+
+	private byte[] buildRequest() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write( 0 );
+		out.write( RRQ );
+
+		writeString( out, fileName );
+		writeString( out, "octet" );
+		writeString( out, "blksize" );
+		writeString( out, String.valueOf( blockSize ) );
+		writeString( out, "tsize" );
+		writeString( out, "0" );
+
+		if( windowSize > 1 ) {
+			writeString( out, "windowsize" );
+			writeString( out, String.valueOf( windowSize ) );
+		}
+
+		return out.toByteArray();
+	}
+
+	private void sendAck( long block ) throws IOException {
+		if( dropped() ) {
+			return;
+		}
+
+		ack[0] = 0;
+		ack[1] = ACK;
+		ack[2] = (byte)(block >>> 8);
+		ack[3] = (byte)block;
+		socket.send( new DatagramPacket( ack, ack.length, transferId ) );
+	}
+
+	private boolean dropped() {
+		return loss > 0 && ThreadLocalRandom.current().nextDouble() < loss;
+	}
+
+	private static int getShort( byte[] buffer, int offset ) {
+		return ((buffer[offset] & 0xff) << 8) | (buffer[offset + 1] & 0xff);
+	}
+
+	private static void writeString( ByteArrayOutputStream out, String str ) {
+		byte[] bytes = str.getBytes( StandardCharsets.US_ASCII );
+		out.write( bytes, 0, bytes.length );
+		out.write( 0 );
+	}
+}
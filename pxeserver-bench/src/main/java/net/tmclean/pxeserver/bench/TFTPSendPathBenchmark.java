@@ -0,0 +1,172 @@
+package net.tmclean.pxeserver.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.tmclean.pxeserver.image.Image;
+import net.tmclean.pxeserver.tftp.DirectBufferPool;
+import net.tmclean.pxeserver.tftp.NioTFTPSession;
+import net.tmclean.pxeserver.tftp.TFTPCodec;
+import net.tmclean.pxeserver.tftp.TFTPOptions;
+import net.tmclean.pxeserver.tftp.TFTPSendContext;
+import net.tmclean.pxeserver.tftp.TFTPTransport;
+import net.tmclean.pxeserver.tftp.TimerWheel;
+
+/**
+ * Cost of answering one ACK with a window of blocks. Run with the GC profiler
+ * to check the steady state send path doesn't allocate:
+ * 
+ *   java -jar target/benchmarks.jar TFTPSendPathBenchmark -prof gc
+ * 
+ * gc.alloc.rate.norm should stay at ~0 B/op; the only allocations are the new
+ * send context (or session) set up once every 2 GB of blocks. With readAhead
+ * above 0 blocks come from the read-ahead ring, filled by its reader threads:
+ * sendWindow waits for them like a blocking engine does, nioSessionAck parks
+ * on whatever isn't ready and resumes once it is read like the NIO engine does.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class TFTPSendPathBenchmark {
+
+	private static final String FILE_PATH   = "casper/initrd";
+	private static final long   FILE_LENGTH = Integer.MAX_VALUE;
+
+	@Param( { "512", "1428", "8192" } )
+	private int blockSize;
+
+	@Param( { "1", "16" } )
+	private int windowSize;
+
+	@Param( { "0", "8" } )
+	private int readAhead;
+
+	private InMemoryImageContentDirectory contentDirectory;
+	private Image image;
+	private InetAddress address;
+
+	private long finalBlock;
+
+	private ByteBuffer packet;
+	private TFTPTransport codecTransport;
+	private TFTPSendContext sendCtx;
+	private long fileId;
+	private long acked;
+
+	private DatagramChannel sink;
+	private DatagramChannel channel;
+	private DirectBufferPool bufferPool;
+	private ByteBuffer ack;
+	private NioTFTPSession session;
+	private long sessionAcked;
+
+	@Setup( Level.Trial )
+	public void setup() throws IOException {
+		this.contentDirectory = new InMemoryImageContentDirectory();
+		this.contentDirectory.addFile( FILE_PATH, FILE_LENGTH );
+
+		this.image = new Image();
+		this.image.setId( 0x01000000L );
+		this.image.setName( "bench" );
+		this.fileId = this.contentDirectory.filePathToId( image, FILE_PATH );
+
+		this.address = InetAddress.getLoopbackAddress();
+		this.finalBlock = FILE_LENGTH / blockSize + 1;
+
+		this.packet = ByteBuffer.allocateDirect( 4 + blockSize );
+		this.codecTransport = ( blockNumber, data, length ) -> TFTPCodec.putData( packet, blockNumber, data, length );
+		newSendContext();
+
+		// Nothing reads the sink, the kernel drops what doesn't fit in its buffer
+		this.sink = DatagramChannel.open().bind( new InetSocketAddress( address, 0 ) );
+		this.channel = DatagramChannel.open();
+		this.channel.configureBlocking( false );
+		this.channel.connect( sink.getLocalAddress() );
+
+		this.bufferPool = new DirectBufferPool( TFTPCodec.packetBufferSize( blockSize ) );
+		this.ack = ByteBuffer.allocateDirect( 4 );
+		newSession();
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown() throws IOException {
+		this.channel.close();
+		this.sink.close();
+	}
+
+	/**
+	 * Send context and packet encoding only, as the NIO engine does it minus the syscall.
+	 */
+	@Benchmark
+	public void sendWindow() throws IOException {
+		sendCtx.sendWindow( codecTransport );
+
+		acked = Math.min( acked + windowSize, finalBlock );
+		sendCtx.acknowledge( (int)(acked & 0xffff) );
+
+		if( sendCtx.isComplete() ) {
+			newSendContext();
+		}
+	}
+
+	/**
+	 * The whole NIO session path for one ACK: decode, window send over loopback
+	 * and re-arming the retransmit timer.
+	 */
+	@Benchmark
+	public void nioSessionAck() throws IOException {
+		sessionAcked = Math.min( sessionAcked + windowSize, finalBlock );
+
+		TFTPCodec.putAck( ack, (int)(sessionAcked & 0xffff) );
+		if( session.onPacket( ack ) ) {
+			newSession();
+		}
+
+		// The engine would go on with other sessions, here the window is finished before the next ACK
+		while( session.isParked() ) {
+			session.onReadAhead();
+		}
+	}
+
+	private void newSendContext() {
+		if( this.sendCtx != null ) {
+			this.sendCtx.close();
+		}
+		this.sendCtx = new TFTPSendContext( contentDirectory, address, 69, image, FILE_PATH, fileId, FILE_LENGTH, blockSize, windowSize, readAhead );
+		this.acked = 0;
+	}
+
+	private void newSession() throws IOException {
+		// The wheel is never advanced here, a fresh one keeps finished sessions from piling up in it
+		TimerWheel<NioTFTPSession> timerWheel = new TimerWheel<>( TimeUnit.MILLISECONDS.toNanos( 10 ), 1024, System.nanoTime(), s -> {} );
+
+		TFTPOptions options = new TFTPOptions( Collections.emptyMap() );
+		TFTPSendContext ctx = new TFTPSendContext( contentDirectory, address, 69, image, FILE_PATH, fileId, FILE_LENGTH, blockSize, windowSize, readAhead );
+
+		this.session = new NioTFTPSession( "bench", channel, ctx, options, bufferPool, timerWheel, s -> {} );
+		this.session.start();
+		this.sessionAcked = 0;
+	}
+}
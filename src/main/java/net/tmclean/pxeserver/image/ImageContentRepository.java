@@ -1,5 +1,6 @@
 package net.tmclean.pxeserver.image;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 
@@ -18,8 +19,18 @@ public interface ImageContentRepository {
 
 	long getFileSize( String filePath ) throws IOException;
 	
+	/**
+	 * @return the length of the file with an id from {@link #filePathToId(String)}
+	 */
+	long getFileSizeById( long fileId ) throws IOException;
+	
 	boolean filePathExists( String filePath ) throws IOException;
 	
+	/**
+	 * @return the path of the entry matching the given one ignoring case, or null if there is none
+	 */
+	String findPathIgnoreCase( String filePath ) throws IOException;
+	
 	ImageFileEntry getFileEntry( String filePath ) throws IOException;
 
 	long filePathToId( String filePath ) throws IOException;
@@ -31,6 +42,24 @@ public interface ImageContentRepository {
 		return readFile( filePath, data, 0, data.length );
 	}
 	
-	int readFile( String filePath, byte[] data, int offset, int length ) throws IOException;
+	int readFile( String filePath, byte[] data, long offset, int length ) throws IOException;
+	
+	/**
+	 * Reads the file with an id from {@link #filePathToId(String)}, without looking up its path.
+	 */
+	int readFileById( long fileId, byte[] data, long offset, int length ) throws IOException;
+	
+	/**
+	 * @return the file on disk holding the content, or null if it only exists inside the image
+	 */
+	default File getLocalFile( String filePath ) throws IOException {
+		return null;
+	}
+	
+	/**
+	 * Sets what to call after the repository's content changed while it was open.
+	 */
+	default void setChangeListener( Runnable listener ) {
+	}
 	
 }
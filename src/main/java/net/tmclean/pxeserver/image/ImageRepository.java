@@ -4,8 +4,18 @@ import java.util.List;
 
 public interface ImageRepository {
 
+	interface CatalogListener {
+		/**
+		 * An image whose entry changed is listed as removed and then added.
+		 */
+		void catalogChanged( List<Image> added, List<Image> removed );
+	}
+
 	List<Image> getAllImages();
 	Image getImage( String name );
 	Image getImage( long id );
 	Image getRootImage();
+	
+	default void addCatalogListener( CatalogListener listener ) {
+	}
 }
@@ -1,75 +1,276 @@
 package net.tmclean.pxeserver.image;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+/**
+ * The images listed in -Dpxeserver.jsonDb. Unless -Dpxeserver.watch=false the
+ * file is watched, and an edit swaps in a new catalog and tells the listeners
+ * which images came and went. ISO files are watched too, one replaced or
+ * rewritten in place goes and comes back so it is indexed again.
+ */
 @Component
 public class ImageRepositoryImpl implements ImageRepository {
 
-	private final List<Image> images = new ArrayList<>();
-	
-	private final Map<Long,   Image> idToImageMap   = new ConcurrentHashMap<>();
-	private final Map<String, Image> nameToImageMap = new ConcurrentHashMap<>();
-	
-	private Image rootImage;
-	
+	private static final Logger _log = LoggerFactory.getLogger( ImageRepositoryImpl.class );
+
+	// Editors write a file in several steps, wait for them to finish
+	private static final long SETTLE_MILLIS = 500L;
+
+	/**
+	 * Never changed once published, a reload replaces the whole catalog.
+	 */
+	private static class Catalog {
+		final List<Image> images;
+		final Map<Long,   Image> idToImageMap   = new HashMap<>();
+		final Map<String, Image> nameToImageMap = new HashMap<>();
+
+		// The size and modification time of each ISO when the catalog was read
+		final Map<String, String> stamps = new HashMap<>();
+
+		// ISO files, whose changes reload the catalog
+		final Set<Path> sources = new HashSet<>();
+		Image rootImage;
+
+		Catalog( List<Image> images ) {
+			this.images = Collections.unmodifiableList( images );
+			for( Image image : images ) {
+				idToImageMap.put( image.getId(), image );
+				nameToImageMap.put( image.getName(), image );
+				stamps.put( image.getName(), stamp( image ) );
+				if( image.getFormat() == ImageFormat.LOCAL_ISO && image.getLocation() != null ) {
+					sources.add( Paths.get( image.getLocation() ).toAbsolutePath() );
+				}
+				if( image.isRoot() ) {
+					this.rootImage = image;
+				}
+			}
+		}
+	}
+
+	private volatile Catalog catalog = new Catalog( new ArrayList<>() );
+
+	private final List<CatalogListener> listeners = new CopyOnWriteArrayList<>();
+
+	private WatchService watchService = null;
+
 	public ImageRepositoryImpl() {
 
 	}
-	
+
 	@PostConstruct
 	public void init() throws IOException {
-		String jsonDbFile = System.getProperty( "pxeserver.jsonDb" );
-		byte[] jsonData = Files.readAllBytes( Paths.get( jsonDbFile ) );
+		Path jsonDbFile = Paths.get( System.getProperty( "pxeserver.jsonDb" ) );
+
+		this.catalog = new Catalog( readCatalog( jsonDbFile ) );
+
+		if( Boolean.parseBoolean( System.getProperty( "pxeserver.watch", "true" ) ) ) {
+			Path dir = jsonDbFile.toAbsolutePath().getParent();
+
+			this.watchService = dir.getFileSystem().newWatchService();
+			dir.register( this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY );
+			watchSources( this.catalog );
+
+			Thread thread = new Thread( () -> watch( jsonDbFile ), "catalog-watch" );
+			thread.setDaemon( true );
+			thread.start();
+		}
+	}
+
+	@PreDestroy
+	public void destroy() throws IOException {
+		if( this.watchService != null ) {
+			this.watchService.close();
+		}
+	}
+
+	private static List<Image> readCatalog( Path jsonDbFile ) throws IOException {
+		byte[] jsonData = Files.readAllBytes( jsonDbFile );
 		ObjectMapper mapper = new ObjectMapper();
 		Image[] images = mapper.readValue( jsonData, Image[].class );
-		
-		for( Image image : images ) {
-			this.addImage( image );
+
+		List<Image> result = new ArrayList<>();
+		Collections.addAll( result, images );
+		return result;
+	}
+
+	private static String stamp( Image image ) {
+		if( image.getFormat() != ImageFormat.LOCAL_ISO || image.getLocation() == null ) {
+			return "";
+		}
+		File file = new File( image.getLocation() );
+		return file.length() + ":" + file.lastModified();
+	}
+
+	/**
+	 * Watches the directories holding the catalog's ISO files, a directory already watched is left as it is.
+	 */
+	private void watchSources( Catalog current ) {
+		for( Path source : current.sources ) {
+			Path dir = source.getParent();
+			try {
+				dir.register( this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY );
+			}
+			catch( IOException e ) {
+				_log.warn( "Failed to watch {} for changes to {}", dir, source, e );
+			}
+		}
+	}
+
+	private void watch( Path jsonDbFile ) {
+		Path jsonDbPath = jsonDbFile.toAbsolutePath();
+
+		try {
+			while( true ) {
+				WatchKey key = this.watchService.take();
+
+				boolean changed = false;
+				do {
+					Path dir = (Path)key.watchable();
+					for( WatchEvent<?> event : key.pollEvents() ) {
+						if( event.kind() == StandardWatchEventKinds.OVERFLOW ) {
+							changed = true;
+							continue;
+						}
+
+						Path path = dir.resolve( (Path)event.context() );
+						changed |= path.equals( jsonDbPath ) || this.catalog.sources.contains( path );
+					}
+					key.reset();
+				}
+				while( (key = this.watchService.poll( SETTLE_MILLIS, TimeUnit.MILLISECONDS )) != null );
+
+				if( changed ) {
+					try {
+						reload( jsonDbFile );
+					}
+					catch( RuntimeException e ) {
+						_log.error( "Failed to reload catalog {}", jsonDbFile, e );
+					}
+				}
+			}
+		}
+		catch( InterruptedException | ClosedWatchServiceException e ) {
+			// Shutting down
 		}
 	}
-	
-	private void addImage( Image image ) {
-		images.add( image );
-		idToImageMap.put( image.getId(), image );
-		nameToImageMap.put( image.getName(), image );
-		if( image.isRoot() ) {
-			this.rootImage = image;
+
+	private void reload( Path jsonDbFile ) {
+		List<Image> images;
+		try {
+			images = readCatalog( jsonDbFile );
+		}
+		catch( IOException | RuntimeException e ) {
+			_log.warn( "Keeping the current catalog, failed to read {}", jsonDbFile, e );
+			return;
+		}
+
+		Catalog current = this.catalog;
+
+		List<Image> kept    = new ArrayList<>();
+		List<Image> added   = new ArrayList<>();
+		List<Image> removed = new ArrayList<>();
+
+		Map<String, Image> remaining = new HashMap<>( current.nameToImageMap );
+
+		for( Image image : images ) {
+			Image existing = remaining.remove( image.getName() );
+
+			// Unchanged images keep the instance everything else already holds
+			if( existing != null && isSame( existing, image ) && current.stamps.get( existing.getName() ).equals( stamp( image ) ) ) {
+				kept.add( existing );
+				continue;
+			}
+
+			if( existing != null ) {
+				removed.add( existing );
+			}
+			added.add( image );
+			kept.add( image );
 		}
+		removed.addAll( remaining.values() );
+
+		if( added.isEmpty() && removed.isEmpty() ) {
+			return;
+		}
+
+		Catalog updated = new Catalog( kept );
+		this.catalog = updated;
+		watchSources( updated );
+
+		_log.info( "Reloaded catalog {}, {} images added and {} removed", jsonDbFile, added.size(), removed.size() );
+
+		for( CatalogListener listener : this.listeners ) {
+			try {
+				listener.catalogChanged( added, removed );
+			}
+			catch( RuntimeException e ) {
+				_log.error( "Catalog listener failed", e );
+			}
+		}
+	}
+
+	private static boolean isSame( Image a, Image b ) {
+		return a.getId() == b.getId()
+			&& a.isRoot() == b.isRoot()
+			&& a.getFormat() == b.getFormat()
+			&& Objects.equals( a.getLocation(), b.getLocation() )
+			&& Objects.equals( a.getDescription(), b.getDescription() );
 	}
-	
+
+	@Override
+	public void addCatalogListener( CatalogListener listener ) {
+		this.listeners.add( listener );
+	}
+
 	@Override
 	public List<Image> getAllImages() {
-		return Collections.unmodifiableList( this.images );
+		return this.catalog.images;
 	}
-	
+
 	@Override
 	public Image getImage( long id ) {
-		return this.idToImageMap.get( id );
+		return this.catalog.idToImageMap.get( id );
 	}
-	
+
 	@Override
 	public Image getImage( String name ) {
+		Catalog current = this.catalog;
 		if( "/".equals( name ) || name.trim().isEmpty() ) {
-			return rootImage;
+			return current.rootImage;
 		}
-		return this.nameToImageMap.get( name );
+		return current.nameToImageMap.get( name );
 	}
-	
+
 	@Override
 	public Image getRootImage() {
-		return this.rootImage;
+		return this.catalog.rootImage;
 	}
 }
@@ -0,0 +1,537 @@
+package net.tmclean.pxeserver.image;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable table of contents of an image, one row per entry in parallel
+ * arrays. Row 0 is the image root and a row's index is the low bits of the
+ * entry's file id, so ids need no map of their own. Only each entry's own
+ * name is kept, from a pool shared by the whole image; full paths are
+ * rebuilt from the parent rows when asked for.
+ *
+ * Names are also indexed lower cased, for clients that get the case of a
+ * path wrong, so that lookup costs the same as an exact one.
+ *
+ * Changes are made on a {@link Builder} copied from the current table and
+ * published as a new table. Removed entries keep their row, so the file ids
+ * of everything else never change. Rows removed by an earlier update are
+ * given to new entries, with a generation in bits 32 to 47 of the file id so
+ * an id of the removed entry no longer finds anything.
+ */
+public class ImageTable {
+
+	public static final int ROOT = 0;
+
+	// File ids keep the row in bits 0 to 23 and the image id in bits 24 to 31
+	public static final int MAX_ENTRIES = 0x00ffffff;
+
+	// A row's generation wraps at 16 bits, the bits above it are left to whoever serves the table
+	private static final int GENERATION_SHIFT = 32;
+	private static final int GENERATION_MASK  = 0xffff;
+
+	private static final byte FLAG_DIRECTORY = 0x01;
+	private static final byte FLAG_REMOVED   = 0x02;
+
+	private final int count;
+	private final String[] names;
+	private final String[] foldedNames;
+	private final int[] parents;
+	private final int[] firstChildren;
+	private final int[] nextSiblings;
+	private final long[] lengths;
+	private final long[] modified;
+	private final long[] extents;
+	private final int[] generations;
+	private final byte[] flags;
+
+	// Open addressing on parent row and name, holding row + 1 so 0 is empty
+	private final int[] slots;
+	private final int[] foldedSlots;
+
+	private ImageTable( Builder builder ) {
+		this.count = builder.count;
+		this.names = Arrays.copyOf( builder.names, count );
+		this.foldedNames = Arrays.copyOf( builder.foldedNames, count );
+		this.parents = Arrays.copyOf( builder.parents, count );
+		this.firstChildren = Arrays.copyOf( builder.firstChildren, count );
+		this.nextSiblings = Arrays.copyOf( builder.nextSiblings, count );
+		this.lengths = Arrays.copyOf( builder.lengths, count );
+		this.modified = Arrays.copyOf( builder.modified, count );
+		this.extents = Arrays.copyOf( builder.extents, count );
+		this.generations = Arrays.copyOf( builder.generations, count );
+		this.flags = Arrays.copyOf( builder.flags, count );
+		this.slots = builder.slots.clone();
+		this.foldedSlots = builder.foldedSlots.clone();
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the row of the path, or -1 if the image has no such entry
+	 */
+	public int indexOf( String path ) {
+		return indexOf( slots, names, parents, flags, path );
+	}
+
+	/**
+	 * @return the row of the path matched ignoring case, or -1 if the image has no such entry
+	 */
+	public int indexOfIgnoreCase( String path ) {
+		return indexOf( foldedSlots, foldedNames, parents, flags, fold( path ) );
+	}
+
+	/**
+	 * @return whether the name can only ever stand for an entry of its own directory
+	 */
+	static boolean isValidName( String name ) {
+		if( name == null || name.isEmpty() || name.equals( "." ) || name.equals( ".." ) ) {
+			return false;
+		}
+		return name.indexOf( '/' ) < 0 && name.indexOf( '\0' ) < 0 && name.indexOf( File.separatorChar ) < 0;
+	}
+
+	private static String fold( String name ) {
+		return name.toLowerCase( Locale.ROOT );
+	}
+
+	/**
+	 * @return the row of a file id, or -1 if it is out of range or its entry was removed
+	 */
+	public int indexOfId( long fileId ) {
+		int row = (int)(fileId & MAX_ENTRIES);
+		return row < count && !isRemoved( row ) && (generations[row] & GENERATION_MASK) == (int)((fileId >>> GENERATION_SHIFT) & GENERATION_MASK) ? row : -1;
+	}
+
+	/**
+	 * @return the file id of the entry, without the image id
+	 */
+	public long getFileId( int row ) {
+		return ((long)(generations[row] & GENERATION_MASK) << GENERATION_SHIFT) | row;
+	}
+
+	/**
+	 * @return how many times the row was given to a new entry
+	 */
+	public int getGeneration( int row ) {
+		return generations[row];
+	}
+
+	public String getName( int row ) {
+		return names[row];
+	}
+
+	public String getPath( int row ) {
+		if( row == ROOT ) {
+			return "";
+		}
+
+		StringBuilder path = new StringBuilder( names[row] );
+		for( int p = parents[row]; p != ROOT; p = parents[p] ) {
+			path.insert( 0, '/' ).insert( 0, names[p] );
+		}
+		return path.toString();
+	}
+
+	public int getParent( int row ) {
+		return parents[row];
+	}
+
+	public long getLength( int row ) {
+		return lengths[row];
+	}
+
+	public long getLastModified( int row ) {
+		return modified[row];
+	}
+
+	/**
+	 * @return where the entry's content starts within the image file, for
+	 * images that are a single file
+	 */
+	public long getExtent( int row ) {
+		return extents[row];
+	}
+
+	public boolean isDirectory( int row ) {
+		return (flags[row] & FLAG_DIRECTORY) != 0;
+	}
+
+	public boolean isRemoved( int row ) {
+		return (flags[row] & FLAG_REMOVED) != 0;
+	}
+
+	/**
+	 * @return the paths of the entries of a directory, in the order they were added
+	 */
+	public List<String> listChildren( int row ) {
+		if( firstChildren[row] < 0 ) {
+			return Collections.emptyList();
+		}
+
+		String prefix = row == ROOT ? "" : getPath( row ) + "/";
+
+		List<String> result = new ArrayList<>();
+		for( int child = firstChildren[row]; child >= 0; child = nextSiblings[child] ) {
+			result.add( prefix + names[child] );
+		}
+		return result;
+	}
+
+	private static int indexOf( int[] slots, String[] names, int[] parents, byte[] flags, String path ) {
+		int row = ROOT;
+		int start = 0;
+		int length = path.length();
+
+		while( start < length && row >= 0 ) {
+			int end = path.indexOf( '/', start );
+			if( end < 0 ) {
+				end = length;
+			}
+
+			if( end > start ) {
+				row = find( slots, names, parents, flags, row, path.substring( start, end ) );
+			}
+			start = end + 1;
+		}
+
+		return row;
+	}
+
+	private static int find( int[] slots, String[] names, int[] parents, byte[] flags, int parent, String name ) {
+		int mask = slots.length - 1;
+		for( int slot = hash( parent, name ) & mask; slots[slot] != 0; slot = (slot + 1) & mask ) {
+			int row = slots[slot] - 1;
+			// Removed rows stay in their slot until the next rehash, probing carries on past them
+			if( parents[row] == parent && (flags[row] & FLAG_REMOVED) == 0 && names[row].equals( name ) ) {
+				return row;
+			}
+		}
+		return -1;
+	}
+
+	private static int hash( int parent, String name ) {
+		int h = parent * 0x9E3779B9 + name.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	public static class Builder {
+
+		private int count = 0;
+		private String[] names = new String[ 256 ];
+		private String[] foldedNames = new String[ 256 ];
+		private int[] parents = new int[ 256 ];
+		private int[] firstChildren = new int[ 256 ];
+		private int[] lastChildren = new int[ 256 ];
+		private int[] nextSiblings = new int[ 256 ];
+		private long[] lengths = new long[ 256 ];
+		private long[] modified = new long[ 256 ];
+		private long[] extents = new long[ 256 ];
+		private int[] generations = new int[ 256 ];
+		private byte[] flags = new byte[ 256 ];
+		private int[] slots = new int[ 512 ];
+		private int[] foldedSlots = new int[ 512 ];
+
+		private final Map<String, String> namePool = new HashMap<>();
+
+		// Rows removed before this builder was made, handed out again before the table grows
+		private int[] free = new int[ 0 ];
+		private int freeCount = 0;
+
+		private boolean changed = false;
+		private boolean removed = false;
+
+		public Builder( long rootLastModified, long rootExtent ) {
+			append( -1, "", 0, rootLastModified, rootExtent, true );
+		}
+
+		/**
+		 * Starts from the rows of an existing table, which is left untouched.
+		 */
+		public Builder( ImageTable table ) {
+			this.count = table.count;
+			this.names = table.names.clone();
+			this.foldedNames = table.foldedNames.clone();
+			this.parents = table.parents.clone();
+			this.firstChildren = table.firstChildren.clone();
+			this.nextSiblings = table.nextSiblings.clone();
+			this.lengths = table.lengths.clone();
+			this.modified = table.modified.clone();
+			this.extents = table.extents.clone();
+			this.generations = table.generations.clone();
+			this.flags = table.flags.clone();
+			this.slots = table.slots.clone();
+			this.foldedSlots = table.foldedSlots.clone();
+
+			this.lastChildren = new int[ count ];
+			for( int row = 0; row < count; row++ ) {
+				int last = -1;
+				for( int child = firstChildren[row]; child >= 0; child = nextSiblings[child] ) {
+					last = child;
+				}
+				lastChildren[row] = last;
+			}
+
+			// Highest row last, so the lowest free rows are used first
+			for( int row = count - 1; row > ROOT; row-- ) {
+				if( (flags[row] & FLAG_REMOVED) != 0 ) {
+					if( freeCount == free.length ) {
+						free = Arrays.copyOf( free, Math.max( 16, freeCount * 2 ) );
+					}
+					free[freeCount++] = row;
+				}
+			}
+		}
+
+		/**
+		 * Rebuilds a stored table row for row, so every entry keeps its file id.
+		 * A reused row can come before its parent, so rows are linked once all
+		 * of them are in, and the entries of a directory are listed in row order.
+		 */
+		static Builder restore( String[] names, int[] parents, long[] lengths, long[] modified, long[] extents, int[] generations, boolean[] directories, boolean[] removed ) {
+			Builder builder = new Builder( modified[ROOT], extents[ROOT] );
+			for( int row = 1; row < names.length; row++ ) {
+				builder.append( parents[row], builder.namePool.computeIfAbsent( names[row], n -> n ), lengths[row], modified[row], extents[row], directories[row] );
+				builder.generations[row] = generations[row];
+			}
+
+			for( int row = 1; row < builder.count; row++ ) {
+				if( removed[row] ) {
+					builder.flags[row] |= FLAG_REMOVED;
+				}
+			}
+
+			int capacity = builder.slots.length;
+			while( builder.count * 2 > capacity ) {
+				capacity *= 2;
+			}
+			for( int row = 1; row < builder.count; row++ ) {
+				int parent = builder.parents[row];
+				if( parent < 0 || parent >= builder.count || parent == row || !directories[parent] ) {
+					throw new IllegalArgumentException( "Entry " + row + " has no parent " + parent );
+				}
+				if( !isValidName( names[row] ) ) {
+					throw new IllegalArgumentException( "Entry " + row + " has an invalid name" );
+				}
+				if( !removed[row] ) {
+					builder.link( parent, row );
+				}
+			}
+			builder.rehash( capacity );
+
+			return builder;
+		}
+
+		/**
+		 * @return the row of the new entry, or of the existing one if the parent already has an entry of that name
+		 */
+		public int add( int parent, String name, long length, long lastModified, long extent, boolean directory ) {
+			int existing = find( slots, names, parents, flags, parent, name );
+			if( existing >= 0 ) {
+				return existing;
+			}
+
+			int row;
+			if( freeCount > 0 ) {
+				row = free[--freeCount];
+				set( row, parent, namePool.computeIfAbsent( name, n -> n ), length, lastModified, extent, directory );
+				generations[row]++;
+			}
+			else {
+				if( count > MAX_ENTRIES ) {
+					throw new IllegalStateException( "Images are limited to " + MAX_ENTRIES + " entries" );
+				}
+
+				if( (count + 1) * 2 > slots.length ) {
+					rehash( slots.length * 2 );
+				}
+
+				row = append( parent, namePool.computeIfAbsent( name, n -> n ), length, lastModified, extent, directory );
+			}
+
+			link( parent, row );
+			insert( row );
+			changed = true;
+
+			return row;
+		}
+
+		private void link( int parent, int row ) {
+			if( firstChildren[parent] < 0 ) {
+				firstChildren[parent] = row;
+			}
+			else {
+				nextSiblings[lastChildren[parent]] = row;
+			}
+			lastChildren[parent] = row;
+		}
+
+		private int append( int parent, String name, long length, long lastModified, long extent, boolean directory ) {
+			if( count == names.length ) {
+				int capacity = count * 2;
+				names = Arrays.copyOf( names, capacity );
+				foldedNames = Arrays.copyOf( foldedNames, capacity );
+				parents = Arrays.copyOf( parents, capacity );
+				firstChildren = Arrays.copyOf( firstChildren, capacity );
+				lastChildren = Arrays.copyOf( lastChildren, capacity );
+				nextSiblings = Arrays.copyOf( nextSiblings, capacity );
+				lengths = Arrays.copyOf( lengths, capacity );
+				modified = Arrays.copyOf( modified, capacity );
+				extents = Arrays.copyOf( extents, capacity );
+				generations = Arrays.copyOf( generations, capacity );
+				flags = Arrays.copyOf( flags, capacity );
+			}
+
+			int row = count++;
+			set( row, parent, name, length, lastModified, extent, directory );
+			return row;
+		}
+
+		private void set( int row, int parent, String name, long length, long lastModified, long extent, boolean directory ) {
+			names[row] = name;
+			foldedNames[row] = namePool.computeIfAbsent( fold( name ), n -> n );
+			parents[row] = parent;
+			firstChildren[row] = -1;
+			lastChildren[row] = -1;
+			nextSiblings[row] = -1;
+			lengths[row] = length;
+			modified[row] = lastModified;
+			extents[row] = extent;
+			flags[row] = directory ? FLAG_DIRECTORY : 0;
+		}
+
+		private void insert( int row ) {
+			insert( slots, row, names[row] );
+			insert( foldedSlots, row, foldedNames[row] );
+		}
+
+		private void insert( int[] table, int row, String name ) {
+			int mask = table.length - 1;
+			int slot = hash( parents[row], name ) & mask;
+			while( table[slot] != 0 ) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = row + 1;
+		}
+
+		private void rehash( int capacity ) {
+			slots = new int[ capacity ];
+			foldedSlots = new int[ capacity ];
+			for( int row = 1; row < count; row++ ) {
+				if( (flags[row] & FLAG_REMOVED) == 0 ) {
+					insert( row );
+				}
+			}
+		}
+
+		/**
+		 * Grows an entry whose content continues in a further extent.
+		 */
+		public void extend( int row, long length ) {
+			lengths[row] += length;
+		}
+
+		/**
+		 * @return whether the length or modification time differed
+		 */
+		public boolean update( int row, long length, long lastModified ) {
+			if( lengths[row] == length && modified[row] == lastModified ) {
+				return false;
+			}
+
+			lengths[row] = length;
+			modified[row] = lastModified;
+			changed = true;
+			return true;
+		}
+
+		/**
+		 * Removes an entry and everything under it. Their rows are only reused by a
+		 * later builder, under a new generation, so their file ids aren't.
+		 */
+		public void remove( int row ) {
+			if( row == ROOT || (flags[row] & FLAG_REMOVED) != 0 ) {
+				return;
+			}
+
+			int parent = parents[row];
+			int previous = -1;
+			for( int child = firstChildren[parent]; child != row; child = nextSiblings[child] ) {
+				previous = child;
+			}
+
+			if( previous < 0 ) {
+				firstChildren[parent] = nextSiblings[row];
+			}
+			else {
+				nextSiblings[previous] = nextSiblings[row];
+			}
+			if( lastChildren[parent] == row ) {
+				lastChildren[parent] = previous;
+			}
+
+			markRemoved( row );
+			changed = true;
+			removed = true;
+		}
+
+		private void markRemoved( int row ) {
+			flags[row] |= FLAG_REMOVED;
+			for( int child = firstChildren[row]; child >= 0; child = nextSiblings[child] ) {
+				markRemoved( child );
+			}
+		}
+
+		public int indexOf( String path ) {
+			return ImageTable.indexOf( slots, names, parents, flags, path );
+		}
+
+		public int getFirstChild( int row ) {
+			return firstChildren[row];
+		}
+
+		public int getNextSibling( int row ) {
+			return nextSiblings[row];
+		}
+
+		public String getName( int row ) {
+			return names[row];
+		}
+
+		public boolean isDirectory( int row ) {
+			return (flags[row] & FLAG_DIRECTORY) != 0;
+		}
+
+		public long getLength( int row ) {
+			return lengths[row];
+		}
+
+		public long getExtent( int row ) {
+			return extents[row];
+		}
+
+		/**
+		 * @return whether anything was added, updated or removed since the builder was created
+		 */
+		public boolean isChanged() {
+			return changed;
+		}
+
+		public ImageTable build() {
+			if( removed ) {
+				// Clears the slots of removed rows so lookups stop probing past them
+				rehash( slots.length );
+				removed = false;
+			}
+			return new ImageTable( this );
+		}
+	}
+}
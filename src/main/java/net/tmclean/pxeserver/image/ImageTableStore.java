@@ -0,0 +1,261 @@
+package net.tmclean.pxeserver.image;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the table of contents of each image in an index file so a restart
+ * doesn't have to walk every image again. An index is used only while the
+ * image's location, size and modification time still match the ones it was
+ * built from, otherwise the image is indexed from scratch and the file
+ * rewritten. Index files go in -Dpxeserver.indexDir, which defaults to
+ * .pxeserver/index in the home directory of the user running the server; an
+ * empty value turns them off.
+ * <p>
+ * Ids handed to clients come straight from an index, so on POSIX file systems
+ * the directory is created private to the server, and indexes are neither
+ * read nor written while anyone else owns it or can write to it.
+ */
+public class ImageTableStore {
+
+	private static final Logger _log = LoggerFactory.getLogger( ImageTableStore.class );
+
+	private static final int MAGIC   = 0x50584954;
+	private static final int VERSION = 3;
+
+	private static final byte STORED_DIRECTORY = 0x01;
+	private static final byte STORED_REMOVED   = 0x02;
+
+	private final File indexDir;
+
+	public ImageTableStore() {
+		this( System.getProperty( "pxeserver.indexDir", new File( System.getProperty( "user.home" ), ".pxeserver" + File.separator + "index" ).getPath() ) );
+	}
+
+	public ImageTableStore( String indexDir ) {
+		this.indexDir = indexDir == null || indexDir.trim().isEmpty() ? null : new File( indexDir );
+	}
+
+	private static boolean isPosix() {
+		return FileSystems.getDefault().supportedFileAttributeViews().contains( "posix" );
+	}
+
+	/**
+	 * @return whether only the user running the server can have put files in the index directory
+	 */
+	private boolean isPrivate() throws IOException {
+		if( !isPosix() ) {
+			return true;
+		}
+
+		Path dir = indexDir.toPath();
+		Set<PosixFilePermission> permissions = Files.getPosixFilePermissions( dir );
+		if( permissions.contains( PosixFilePermission.GROUP_WRITE ) || permissions.contains( PosixFilePermission.OTHERS_WRITE ) ) {
+			return false;
+		}
+		return Files.getOwner( dir ).getName().equals( System.getProperty( "user.name" ) );
+	}
+
+	private File indexFile( Image image ) {
+		String key = UUID.nameUUIDFromBytes( image.getLocation().getBytes( StandardCharsets.UTF_8 ) ).toString();
+		return new File( indexDir, key + ".toc" );
+	}
+
+	/**
+	 * @return the stored table of the image, or null if there is none or it
+	 * was built from a different version of the image
+	 */
+	public ImageTable load( Image image, long sourceSize, long sourceModified ) {
+		if( indexDir == null ) {
+			return null;
+		}
+
+		File file = indexFile( image );
+		if( !file.isFile() ) {
+			return null;
+		}
+
+		try {
+			if( !isPrivate() ) {
+				_log.warn( "Ignoring index {} of image {}, {} is not private to the server", file, image.getName(), indexDir );
+				return null;
+			}
+		}
+		catch( IOException e ) {
+			_log.warn( "Ignoring index {} of image {}", file, image.getName(), e );
+			return null;
+		}
+
+		try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+			MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+
+			if( buffer.getInt() != MAGIC || buffer.getInt() != VERSION ) {
+				return null;
+			}
+
+			if( !image.getLocation().equals( getString( buffer ) ) || buffer.getLong() != sourceSize || buffer.getLong() != sourceModified ) {
+				return null;
+			}
+
+			int count = buffer.getInt();
+
+			String[] pool = new String[ buffer.getInt() ];
+			for( int i = 0; i < pool.length; i++ ) {
+				pool[i] = getString( buffer );
+			}
+
+			int[] names = new int[ count ];
+			int[] parents = new int[ count ];
+			long[] lengths = new long[ count ];
+			long[] modified = new long[ count ];
+			long[] extents = new long[ count ];
+			int[] generations = new int[ count ];
+			byte[] flags = new byte[ count ];
+
+			buffer.asIntBuffer().get( names );
+			buffer.position( buffer.position() + count * 4 );
+			buffer.asIntBuffer().get( parents );
+			buffer.position( buffer.position() + count * 4 );
+			buffer.asLongBuffer().get( lengths );
+			buffer.position( buffer.position() + count * 8 );
+			buffer.asLongBuffer().get( modified );
+			buffer.position( buffer.position() + count * 8 );
+			buffer.asLongBuffer().get( extents );
+			buffer.position( buffer.position() + count * 8 );
+			buffer.asIntBuffer().get( generations );
+			buffer.position( buffer.position() + count * 4 );
+			buffer.get( flags );
+
+			String[] rowNames = new String[ count ];
+			boolean[] directories = new boolean[ count ];
+			boolean[] removed = new boolean[ count ];
+			for( int row = 0; row < count; row++ ) {
+				rowNames[row] = pool[names[row]];
+				directories[row] = (flags[row] & STORED_DIRECTORY) != 0;
+				removed[row] = (flags[row] & STORED_REMOVED) != 0;
+			}
+
+			// Removed entries keep their row so every entry gets its old row and file id back
+			return ImageTable.Builder.restore( rowNames, parents, lengths, modified, extents, generations, directories, removed ).build();
+		}
+		catch( IOException | RuntimeException e ) {
+			_log.warn( "Ignoring unreadable index {} of image {}", file, image.getName(), e );
+			return null;
+		}
+	}
+
+	public void save( Image image, long sourceSize, long sourceModified, ImageTable table ) {
+		if( indexDir == null ) {
+			return;
+		}
+
+		File file = indexFile( image );
+
+		try {
+			if( isPosix() ) {
+				Files.createDirectories( indexDir.toPath(), PosixFilePermissions.asFileAttribute( PosixFilePermissions.fromString( "rwx------" ) ) );
+			}
+			else {
+				Files.createDirectories( indexDir.toPath() );
+			}
+
+			if( !isPrivate() ) {
+				_log.warn( "Not writing index {} of image {}, {} is not private to the server", file, image.getName(), indexDir );
+				return;
+			}
+
+			// Written aside and moved into place so a crash never leaves half an index behind
+			Path temp = Files.createTempFile( indexDir.toPath(), file.getName(), ".tmp" );
+			try {
+				try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( temp ), 64 * 1024 ) ) ) {
+					write( out, image, sourceSize, sourceModified, table );
+				}
+				Files.move( temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			}
+			finally {
+				Files.deleteIfExists( temp );
+			}
+		}
+		catch( IOException e ) {
+			_log.warn( "Failed to write index {} of image {}", file, image.getName(), e );
+		}
+	}
+
+	private static void write( DataOutputStream out, Image image, long sourceSize, long sourceModified, ImageTable table ) throws IOException {
+		int count = table.size();
+
+		Map<String, Integer> poolIndex = new HashMap<>();
+		int[] names = new int[ count ];
+		for( int row = 0; row < count; row++ ) {
+			names[row] = poolIndex.computeIfAbsent( table.getName( row ), n -> poolIndex.size() );
+		}
+
+		String[] pool = new String[ poolIndex.size() ];
+		poolIndex.forEach( ( name, i ) -> pool[i] = name );
+
+		out.writeInt( MAGIC );
+		out.writeInt( VERSION );
+		putString( out, image.getLocation() );
+		out.writeLong( sourceSize );
+		out.writeLong( sourceModified );
+		out.writeInt( count );
+
+		out.writeInt( pool.length );
+		for( String name : pool ) {
+			putString( out, name );
+		}
+
+		for( int row = 0; row < count; row++ ) {
+			out.writeInt( names[row] );
+		}
+		for( int row = 0; row < count; row++ ) {
+			out.writeInt( table.getParent( row ) );
+		}
+		for( int row = 0; row < count; row++ ) {
+			out.writeLong( table.getLength( row ) );
+		}
+		for( int row = 0; row < count; row++ ) {
+			out.writeLong( table.getLastModified( row ) );
+		}
+		for( int row = 0; row < count; row++ ) {
+			out.writeLong( table.getExtent( row ) );
+		}
+		for( int row = 0; row < count; row++ ) {
+			out.writeInt( table.getGeneration( row ) );
+		}
+		for( int row = 0; row < count; row++ ) {
+			out.writeByte( (table.isDirectory( row ) ? STORED_DIRECTORY : 0) | (table.isRemoved( row ) ? STORED_REMOVED : 0) );
+		}
+	}
+
+	private static void putString( DataOutputStream out, String value ) throws IOException {
+		byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+		out.writeInt( bytes.length );
+		out.write( bytes );
+	}
+
+	private static String getString( MappedByteBuffer buffer ) {
+		byte[] bytes = new byte[ buffer.getInt() ];
+		buffer.get( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+}
@@ -1,13 +1,27 @@
 package net.tmclean.pxeserver.image.aggregate;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
 import net.tmclean.pxeserver.image.Image;
@@ -15,97 +29,610 @@ import net.tmclean.pxeserver.image.ImageContentRepository;
 import net.tmclean.pxeserver.image.ImageFileEntry;
 import net.tmclean.pxeserver.image.ImageFormat;
 import net.tmclean.pxeserver.image.ImageRepository;
+import net.tmclean.pxeserver.image.ImageTableStore;
 import net.tmclean.pxeserver.image.dir.DirectoryImageContentRepository;
+import net.tmclean.pxeserver.image.dir.DirectoryWatcher;
 import net.tmclean.pxeserver.image.iso.IsoImageContentRepository;
 
+/**
+ * Serves the content of every image, each through the repository for its
+ * format. By default every image is indexed at startup and kept open. With
+ * -Dpxeserver.images.lazy=true an image is only opened on first use and
+ * closed again once idle for -Dpxeserver.images.idleSeconds, with at most
+ * -Dpxeserver.images.maxOpen open at a time. Images added to or removed from
+ * the catalog while running are opened or closed to match. An image that
+ * fails to load fails every request with the same error, until it is tried
+ * again after -Dpxeserver.images.retrySeconds.
+ */
 @Component
 public class AggregateImageContentRepository implements ImageContentDirectory {
 
+	private static final Logger _log = LoggerFactory.getLogger( AggregateImageContentRepository.class );
+
+	@FunctionalInterface
+	private interface MountCall<T> {
+		T call( Mount mount ) throws IOException;
+	}
+
+	// File ids handed out carry the generation of the mount above the repository's own bits
+	private static final int  MOUNT_SHIFT   = 48;
+	private static final long REPO_ID_MASK  = (1L << MOUNT_SHIFT) - 1;
+	private static final int  MAX_GENERATION = 0xffff;
+
+	/**
+	 * An opened image. Lazily opened images count the calls using them so they
+	 * are never closed under a reader.
+	 */
+	private static class Mount {
+		// Set in the reader count once closed, no reader gets in after that
+		static final int CLOSED = Integer.MIN_VALUE;
+
+		final Image image;
+		final ImageContentRepository repo;
+
+		// Set before the mount is published
+		ForkJoinTask<ImageContentRepository> loading;
+
+		final AtomicInteger readers = new AtomicInteger( 0 );
+
+		// The image's generation in the catalog, ids from a version it replaced are refused
+		final long idBits;
+
+		volatile long lastAccess = System.nanoTime();
+		volatile long failedAt = 0;
+
+		Mount( Image image, ImageContentRepository repo, int generation ) {
+			this.image = image;
+			this.repo = repo;
+			this.idBits = (long)generation << MOUNT_SHIFT;
+		}
+
+		boolean owns( long fileId ) {
+			return (fileId & ~REPO_ID_MASK) == idBits;
+		}
+
+		void checkOwned( long fileId ) throws IOException {
+			if( !owns( fileId ) ) {
+				throw new IOException( "File id " + Long.toHexString( fileId ) + " is from a replaced version of image " + image.getName() );
+			}
+		}
+
+		boolean enter() {
+			while( true ) {
+				int current = readers.get();
+				if( (current & CLOSED) != 0 ) {
+					return false;
+				}
+				if( readers.compareAndSet( current, current + 1 ) ) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * @return whether this was the last reader of a closed mount
+		 */
+		boolean exit() {
+			return readers.decrementAndGet() == CLOSED;
+		}
+
+		/**
+		 * @return whether the mount was closed by this call and nobody is reading from it
+		 */
+		boolean markClosed() {
+			return readers.getAndUpdate( current -> current | CLOSED ) == 0;
+		}
+
+		boolean closeIfIdle() {
+			return readers.compareAndSet( 0, CLOSED );
+		}
+	}
+
 	private final ImageRepository imageRepo;
-	
-	private Map<String, ImageContentRepository> repoMap = new ConcurrentHashMap<>();
-	
+
+	private final Map<String, Image> imageMap = new ConcurrentHashMap<>();
+	private final Map<String, Mount> mountMap = new ConcurrentHashMap<>();
+
+	// Bumped each time the catalog brings in an image under a name already used, so its ids differ
+	private final Map<String, Integer> generations = new ConcurrentHashMap<>();
+
+	private final ForkJoinPool indexPool = new ForkJoinPool( Integer.getInteger( "pxeserver.indexThreads", Runtime.getRuntime().availableProcessors() ) );
+
+	private final boolean lazy    = Boolean.getBoolean( "pxeserver.images.lazy" );
+	private final long idleNanos  = TimeUnit.SECONDS.toNanos( Long.getLong( "pxeserver.images.idleSeconds", 600L ) );
+	private final int maxOpen     = Integer.getInteger( "pxeserver.images.maxOpen", 16 );
+	private final long retryNanos = TimeUnit.SECONDS.toNanos( Long.getLong( "pxeserver.images.retrySeconds", 60L ) );
+
+	// Readers of images that stay open aren't counted, one dropped from the catalog is closed once they have had this long to finish
+	private final long retireSeconds = Long.getLong( "pxeserver.images.retireSeconds", 300L );
+
+	// Images dropped from the catalog and waiting out the time above
+	private final Set<Mount> retiring = ConcurrentHashMap.newKeySet();
+
+	private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor( r -> {
+		Thread thread = new Thread( r, "image-sweeper" );
+		thread.setDaemon( true );
+		return thread;
+	});
+
+	// Every client of a boot storm reads the same few files, so reads are shared across clients
+	private final ImageContentCache contentCache = new ImageContentCache();
+
+	private final ImageTableStore tableStore = new ImageTableStore();
+
+	// Shared by every directory image rather than a watch thread each
+	private final DirectoryWatcher watcher = new DirectoryWatcher();
+
+	private final List<Consumer<Image>> listeners = new CopyOnWriteArrayList<>();
+
 	public AggregateImageContentRepository( ImageRepository imageRepo ) {
 		this.imageRepo = imageRepo;
 	}
-	
+
 	@Override
 	@PostConstruct
 	public void init() throws IOException {
 		for( Image image : imageRepo.getAllImages() ) {
 			this.initImage( image );
 		}
+
+		imageRepo.addCatalogListener( this::catalogChanged );
+
+		if( lazy ) {
+			long interval = Math.max( TimeUnit.SECONDS.toNanos( 1 ), idleNanos / 4 );
+			this.sweeper.scheduleWithFixedDelay( this::unloadIdle, interval, interval, TimeUnit.NANOSECONDS );
+		}
+		else {
+			// Images are indexed in the background so the servers can start, and serve
+			// every image that is ready while the rest are still loading
+			for( Image image : imageRepo.getAllImages() ) {
+				this.mount( image );
+			}
+		}
 	}
 
 	@Override
 	@PreDestroy
 	public void destroy() throws IOException {
-		for( ImageContentRepository repo : this.repoMap.values() ) {
-			repo.destroy();
+		this.sweeper.shutdownNow();
+
+		indexPool.shutdownNow();
+		try {
+			indexPool.awaitTermination( 10, TimeUnit.SECONDS );
+		}
+		catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+
+		for( Mount mount : this.mountMap.values() ) {
+			if( mount.loading.isDone() && !mount.loading.isCompletedAbnormally() ) {
+				mount.repo.destroy();
+			}
+		}
+		this.mountMap.clear();
+
+		for( Mount mount : this.retiring ) {
+			closeRetired( mount );
+		}
+
+		this.watcher.close();
+	}
+
+	private void catalogChanged( List<Image> added, List<Image> removed ) {
+		for( Image image : removed ) {
+			this.imageMap.remove( image.getName(), image );
+
+			Mount mount = this.mountMap.get( image.getName() );
+			if( mount != null && mount.image == image ) {
+				retire( mount );
+			}
+		}
+
+		for( Image image : added ) {
+			this.generations.merge( image.getName(), 1, ( a, b ) -> (a + b) & MAX_GENERATION );
+			try {
+				this.initImage( image );
+				if( !lazy ) {
+					this.mount( image );
+				}
+			}
+			catch( IOException | RuntimeException e ) {
+				_log.error( "Failed to add image {}", image.getName(), e );
+			}
+		}
+
+		contentCache.clear();
+
+		for( Image image : removed ) {
+			notifyListeners( image );
+		}
+		for( Image image : added ) {
+			notifyListeners( image );
 		}
 	}
-	
-	private void initImage( Image image ) throws IOException {		
-		if( this.repoMap.containsKey( image.getName() ) ) {
+
+	private void contentChanged( Image image ) {
+		// Cached blocks are keyed by file id, which a changed file keeps
+		contentCache.clear();
+		notifyListeners( image );
+	}
+
+	private void notifyListeners( Image image ) {
+		for( Consumer<Image> listener : this.listeners ) {
+			try {
+				listener.accept( image );
+			}
+			catch( RuntimeException e ) {
+				_log.error( "Change listener failed for image {}", image.getName(), e );
+			}
+		}
+	}
+
+	@Override
+	public void addChangeListener( Consumer<Image> listener ) {
+		this.listeners.add( listener );
+	}
+
+	private void initImage( Image image ) throws IOException {
+		if( this.imageMap.containsKey( image.getName() ) ) {
 			throw new IllegalArgumentException( "Image " + image.getName() + " already exists" );
 		}
-		
-		ImageContentRepository contentRepo = null;
-		
-		if( image.getFormat() == ImageFormat.LOCAL_DIR ) {
-			contentRepo = new DirectoryImageContentRepository( image );
+
+		if( image.getFormat() != ImageFormat.LOCAL_DIR && image.getFormat() != ImageFormat.LOCAL_ISO ) {
+			throw new IllegalArgumentException( "Image " + image.getName() + " is of unsupported format " + image.getFormat() );
 		}
-		else if( image.getFormat() == ImageFormat.LOCAL_ISO ) {
-			contentRepo = new IsoImageContentRepository( image );
+
+		this.imageMap.put( image.getName(), image );
+	}
+
+	private ImageContentRepository newRepo( Image image ) throws IOException {
+		ImageContentRepository repo;
+		if( image.getFormat() == ImageFormat.LOCAL_DIR ) {
+			repo = new DirectoryImageContentRepository( image, tableStore, watcher );
 		}
 		else {
-			throw new IllegalArgumentException( "Image " + image.getName() + " is of unsupported format " + image.getFormat() );
+			repo = new IsoImageContentRepository( image, tableStore );
+		}
+
+		repo.setChangeListener( () -> contentChanged( image ) );
+		return repo;
+	}
+
+	/**
+	 * Starts indexing an image on the pool unless it is already open or opening.
+	 */
+	private Mount mount( Image image ) {
+		while( true ) {
+			Mount mount = this.mountMap.computeIfAbsent( image.getName(), name -> newMount( image ) );
+			if( mount.image == image ) {
+				return mount;
+			}
+
+			// Left over from an image the catalog has since replaced
+			retire( mount );
+		}
+	}
+
+	private Mount newMount( Image image ) {
+		try {
+			Mount mount = new Mount( image, newRepo( image ), this.generations.getOrDefault( image.getName(), 0 ) );
+
+			// Started from inside computeIfAbsent so an image is only ever loaded once at a time
+			mount.loading = ForkJoinTask.adapt( () -> loadImage( mount ) );
+			this.indexPool.execute( mount.loading );
+			return mount;
+		}
+		catch( IOException e ) {
+			throw new IllegalStateException( "Failed to create repository for image " + image.getName(), e );
 		}
-		
-		contentRepo.init();
-		this.repoMap.put( image.getName(), contentRepo );
 	}
 
-	private ImageContentRepository getRepo( Image image ) {
-		if( !repoMap.containsKey( image.getName() ) ) {
+	private ImageContentRepository loadImage( Mount mount ) throws IOException {
+		long start = System.nanoTime();
+		try {
+			mount.repo.init();
+
+			_log.info( "Image {} ready in {} ms", mount.image.getName(), TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) );
+			return mount.repo;
+		}
+		catch( IOException | RuntimeException e ) {
+			_log.error( "Image {} failed to load after {} ms, retrying in {} s", mount.image.getName(), TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ), TimeUnit.NANOSECONDS.toSeconds( retryNanos ), e );
+
+			// Kept so requests fail straight away rather than each indexing the image again
+			mount.failedAt = System.nanoTime();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the mount serving the image, opening it or trying a failed one again if need be
+	 */
+	private Mount lookup( Image image ) throws IOException {
+		Mount mount = this.mountMap.get( image.getName() );
+		if( mount != null && mount.image == image && !isRetryDue( mount ) ) {
+			return mount;
+		}
+
+		Image known = this.imageMap.get( image.getName() );
+		if( known == null ) {
 			throw new IllegalArgumentException( "Unknown image  " + image.getName() );
 		}
-		
-		return repoMap.get( image.getName() );
+
+		// Held from before a catalog reload, its paths and ids may mean something else now
+		if( known != image ) {
+			throw new IOException( "Image " + image.getName() + " has been replaced in the catalog" );
+		}
+
+		if( mount != null && mount.image == image ) {
+			this.mountMap.remove( known.getName(), mount );
+		}
+		return mount( known );
+	}
+
+	private boolean isRetryDue( Mount mount ) {
+		return mount.loading.isCompletedAbnormally() && System.nanoTime() - mount.failedAt >= retryNanos;
+	}
+
+	/**
+	 * @return the loaded repository, only requests for an image still indexing wait for it
+	 */
+	private ImageContentRepository loaded( Mount mount ) throws IOException {
+		ForkJoinTask<ImageContentRepository> loading = mount.loading;
+		if( loading.isCompletedNormally() ) {
+			return mount.repo;
+		}
+
+		try {
+			loading.get();
+			return mount.repo;
+		}
+		catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new IOException( "Interrupted waiting for image " + mount.image.getName() + " to load", e );
+		}
+		catch( ExecutionException e ) {
+			// The pool wraps the original failure, report the I/O error underneath if there is one
+			Throwable cause = e.getCause();
+			for( Throwable t = cause; t != null; t = t.getCause() ) {
+				if( t instanceof IOException ) {
+					cause = t;
+					break;
+				}
+			}
+			throw new IOException( "Image " + mount.image.getName() + " failed to load", cause );
+		}
+	}
+
+	private Mount acquire( Image image ) throws IOException {
+		while( true ) {
+			boolean opened = !this.mountMap.containsKey( image.getName() );
+			Mount mount = lookup( image );
+
+			// Lost a race with unloading, open it again
+			if( !mount.enter() ) {
+				continue;
+			}
+
+			// Lost a race with a catalog reload, use whatever replaced the image
+			if( this.imageMap.get( mount.image.getName() ) != mount.image ) {
+				release( mount );
+				continue;
+			}
+
+			mount.lastAccess = System.nanoTime();
+
+			if( opened ) {
+				unloadOverLimit();
+			}
+
+			try {
+				loaded( mount );
+				return mount;
+			}
+			catch( IOException e ) {
+				release( mount );
+				throw e;
+			}
+		}
+	}
+
+	private void release( Mount mount ) {
+		// The last reader of a retired image closes it
+		if( mount.exit() ) {
+			close( mount );
+		}
+	}
+
+	private <T> T withMount( Image image, MountCall<T> call ) throws IOException {
+		if( !lazy ) {
+			// Images stay open until dropped from the catalog, so there is nobody to count readers for
+			Mount mount = lookup( image );
+			loaded( mount );
+			return call.call( mount );
+		}
+
+		Mount mount = acquire( image );
+		try {
+			return call.call( mount );
+		}
+		finally {
+			release( mount );
+		}
+	}
+
+	/**
+	 * Closes a loaded image nobody is reading from.
+	 */
+	private boolean unload( Mount mount ) {
+		if( !mount.loading.isDone() || !mount.closeIfIdle() ) {
+			return false;
+		}
+
+		this.mountMap.remove( mount.image.getName(), mount );
+
+		if( !mount.loading.isCompletedAbnormally() ) {
+			try {
+				mount.repo.destroy();
+				_log.info( "Unloaded image {}", mount.image.getName() );
+			}
+			catch( IOException e ) {
+				_log.warn( "Failed to unload image {}", mount.image.getName(), e );
+			}
+		}
+		return true;
 	}
-	
+
+	/**
+	 * Closes an image dropped from the catalog, once its last reader is done.
+	 */
+	private void retire( Mount mount ) {
+		this.mountMap.remove( mount.image.getName(), mount );
+
+		if( !mount.markClosed() ) {
+			return;
+		}
+
+		if( lazy ) {
+			close( mount );
+		}
+		else {
+			this.retiring.add( mount );
+			this.sweeper.schedule( () -> closeRetired( mount ), retireSeconds, TimeUnit.SECONDS );
+		}
+	}
+
+	private void closeRetired( Mount mount ) {
+		if( this.retiring.remove( mount ) ) {
+			close( mount );
+		}
+	}
+
+	private void close( Mount mount ) {
+		// Still indexing, wait for it so the repository is not left half open
+		mount.loading.quietlyJoin();
+
+		if( !mount.loading.isCompletedAbnormally() ) {
+			try {
+				mount.repo.destroy();
+				_log.info( "Closed image {}", mount.image.getName() );
+			}
+			catch( IOException e ) {
+				_log.warn( "Failed to close image {}", mount.image.getName(), e );
+			}
+		}
+	}
+
+	private void unloadIdle() {
+		long now = System.nanoTime();
+		for( Mount mount : this.mountMap.values() ) {
+			if( now - mount.lastAccess >= idleNanos ) {
+				unload( mount );
+			}
+		}
+	}
+
+	private void unloadOverLimit() {
+		// Least recently used first. Images in use are skipped, so the limit can be
+		// exceeded until they go idle
+		List<Mount> candidates = new ArrayList<>( this.mountMap.values() );
+
+		while( this.mountMap.size() > maxOpen && !candidates.isEmpty() ) {
+			Mount eldest = null;
+			long eldestAccess = Long.MAX_VALUE;
+
+			for( Mount mount : candidates ) {
+				long access = mount.lastAccess;
+				if( eldest == null || access - eldestAccess < 0 ) {
+					eldest = mount;
+					eldestAccess = access;
+				}
+			}
+
+			candidates.remove( eldest );
+			unload( eldest );
+		}
+	}
+
+	@Override
+	public boolean isImageReady( Image image ) throws IOException {
+		// An image that failed to load is ready too, calls fail straight away with its error
+		return lookup( image ).loading.isDone();
+	}
+
 	@Override
 	public long getImageFileSize( Image image, String filePath ) throws IOException {
-		return getRepo( image ).getFileSize( filePath );
+		return withMount( image, mount -> mount.repo.getFileSize( filePath ) );
 	}
 
 	@Override
 	public boolean imageFilePathExists( Image image, String filePath ) throws IOException {
-		return getRepo( image ).filePathExists( filePath );
+		return withMount( image, mount -> mount.repo.filePathExists( filePath ) );
+	}
+
+	@Override
+	public String findImagePathIgnoreCase( Image image, String filePath ) throws IOException {
+		return withMount( image, mount -> mount.repo.findPathIgnoreCase( filePath ) );
 	}
 
 	@Override
 	public ImageFileEntry getFileEntry( Image image, String filePath ) throws IOException {
-		return getRepo( image ).getFileEntry( filePath );
+		return withMount( image, mount -> mount.repo.getFileEntry( filePath ) );
 	}
 
 	@Override
 	public long filePathToId( Image image, String filePath ) throws IOException {
-		return getRepo( image ).filePathToId( filePath );
+		return withMount( image, mount -> mount.repo.filePathToId( filePath ) | mount.idBits );
 	}
 
 	@Override
 	public String idToFilePath( Image image, long id ) throws IOException {
-		return getRepo( image ).idToFilePath( id );
+		return withMount( image, mount -> mount.owns( id ) ? mount.repo.idToFilePath( id & REPO_ID_MASK ) : null );
 	}
 
 	@Override
 	public List<String> listImagePath( Image image, String filePath ) throws IOException {
-		return getRepo( image ).listPath( filePath );
+		return withMount( image, mount -> mount.repo.listPath( filePath ) );
 	}
 
 	@Override
-	public int readImageFile( Image image, String filePath, byte[] data, int offset, int length ) throws IOException {
-		return getRepo( image ).readFile( filePath, data, offset, length );
+	public int readImageFile( Image image, String filePath, byte[] data, long offset, int length ) throws IOException {
+		return withMount( image, mount -> read( mount.repo, mount.repo.filePathToId( filePath ) | mount.idBits, data, offset, length ) );
+	}
+
+	@Override
+	public int readImageFileById( Image image, long fileId, byte[] data, long offset, int length ) throws IOException {
+		return withMount( image, mount -> {
+			mount.checkOwned( fileId );
+			return read( mount.repo, fileId, data, offset, length );
+		});
+	}
+
+	/**
+	 * @param fileId the id including the mount's generation, which also keys the cache
+	 */
+	private int read( ImageContentRepository repo, long fileId, byte[] data, long offset, int length ) throws IOException {
+		long repoId = fileId & REPO_ID_MASK;
+		long fileLength = repo.getFileSizeById( repoId );
+		if( !contentCache.accepts( fileLength ) ) {
+			return repo.readFileById( repoId, data, offset, length );
+		}
+
+		return contentCache.read(
+			fileId,
+			fileLength,
+			offset,
+			data,
+			length,
+			( pos, buffer, count ) -> repo.readFileById( repoId, buffer, pos, count )
+		);
+	}
+
+	@Override
+	public File getImageLocalFile( Image image, String filePath ) throws IOException {
+		return withMount( image, mount -> mount.repo.getLocalFile( filePath ) );
+	}
+
+	public ImageContentCache getContentCache() {
+		return contentCache;
 	}
 }
@@ -0,0 +1,362 @@
+package net.tmclean.pxeserver.image.aggregate;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Size bounded cache of file content shared by every client. Files are cached
+ * in fixed size chunks keyed by file id and chunk index, so a small file is a
+ * single chunk and a large one is only held for the parts being read. The file
+ * id already carries the image id in bits 24 to 31, and the generations of the
+ * entry and the image above them. Chunks are evicted in CLOCK
+ * order: a chunk read since the hand last passed it gets a second chance.
+ * <p>
+ * Chunks are found through an open addressing table on the id and index, so
+ * a hit neither locks nor allocates. Changes to the table are made under the
+ * clock lock, and a chunk loaded before a {@link #clear()} is never added
+ * after it. A missing chunk goes into the table before it is read, so readers
+ * missing on it at the same time wait for that one read instead of each
+ * reading it again.
+ */
+public class ImageContentCache {
+
+	public interface ChunkLoader {
+		int read( long offset, byte[] data, int length ) throws IOException;
+	}
+
+	private static final class Chunk {
+		private final long fileId;
+		private final long index;
+		private volatile byte[] data = null;
+		private volatile IOException failure = null;
+		private volatile boolean referenced = true;
+
+		private Chunk( long fileId, long index ) {
+			this.fileId = fileId;
+			this.index = index;
+		}
+
+		private synchronized void loaded( byte[] data ) {
+			this.data = data;
+			notifyAll();
+		}
+
+		private synchronized void failed( IOException failure ) {
+			this.failure = failure;
+			notifyAll();
+		}
+
+		private byte[] await() throws IOException {
+			byte[] data = this.data;
+			if( data != null ) {
+				return data;
+			}
+
+			synchronized( this ) {
+				try {
+					while( (data = this.data) == null && failure == null ) {
+						wait();
+					}
+				}
+				catch( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException( "Interrupted waiting for chunk " + index + " of file " + String.format( "%016x", fileId ) );
+				}
+			}
+
+			if( data == null ) {
+				throw new IOException( "Failed to read chunk " + index + " of file " + String.format( "%016x", fileId ), failure );
+			}
+			return data;
+		}
+	}
+
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	private static final int MIN_TABLE_SIZE = 1024;
+
+	// Left in place of an evicted chunk so probes for the chunks after it still find them
+	private static final Chunk REMOVED = new Chunk( -1, -1 );
+
+	private final long capacity;
+	private final long maxFileSize;
+
+	// Replaced whole on a resize or clear, lookups keep probing whichever table they started on
+	private volatile AtomicReferenceArray<Chunk> table = new AtomicReferenceArray<>( MIN_TABLE_SIZE );
+
+	// Bumped by every clear, a chunk loaded under an older generation is not added
+	private volatile long generation = 0;
+
+	// Guarded by clock, the CLOCK is the insertion order with second chances
+	private final Deque<Chunk> clock = new ArrayDeque<>();
+	private long size = 0;
+	private int usedSlots = 0;
+
+	private final AtomicLong hits      = new AtomicLong();
+	private final AtomicLong misses    = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public ImageContentCache() {
+		this(
+			Long.getLong( "pxeserver.cache.size", 256L << 20 ),
+			Long.getLong( "pxeserver.cache.maxFileSize", 64L << 20 )
+		);
+	}
+
+	public ImageContentCache( long capacity, long maxFileSize ) {
+		this.capacity = capacity;
+		this.maxFileSize = Math.min( maxFileSize, capacity );
+	}
+
+	/**
+	 * Files bigger than this bypass the cache, a single one would otherwise
+	 * flush out every boot file.
+	 */
+	public boolean accepts( long fileLength ) {
+		return fileLength <= maxFileSize;
+	}
+
+	/**
+	 * Reads up to length bytes from the given file position into the start of data.
+	 */
+	public int read( long fileId, long fileLength, long offset, byte[] data, int length, ChunkLoader loader ) throws IOException {
+		int count = (int)Math.max( 0, Math.min( Math.min( length, data.length ), fileLength - offset ) );
+
+		int copied = 0;
+		while( copied < count ) {
+			long pos   = offset + copied;
+			long index = pos / CHUNK_SIZE;
+			byte[] chunk = getChunk( fileId, fileLength, index, loader );
+
+			int within = (int)(pos - index * CHUNK_SIZE);
+			int n = Math.min( count - copied, chunk.length - within );
+			if( n <= 0 ) {
+				break;
+			}
+
+			System.arraycopy( chunk, within, data, copied, n );
+			copied += n;
+		}
+
+		return copied;
+	}
+
+	private byte[] getChunk( long fileId, long fileLength, long index, ChunkLoader loader ) throws IOException {
+		long loadGeneration = this.generation;
+
+		Chunk chunk = find( this.table, fileId, index );
+		if( chunk != null ) {
+			chunk.referenced = true;
+			hits.incrementAndGet();
+			return chunk.await();
+		}
+
+		Chunk owned = null;
+		synchronized( clock ) {
+			if( loadGeneration == this.generation ) {
+				chunk = find( this.table, fileId, index );
+				if( chunk == null ) {
+					// In the table while it is read, counted in the size once it has been
+					owned = chunk = new Chunk( fileId, index );
+					insert( chunk );
+					clock.addLast( chunk );
+				}
+			}
+		}
+
+		if( chunk != null && owned == null ) {
+			chunk.referenced = true;
+			hits.incrementAndGet();
+			return chunk.await();
+		}
+
+		misses.incrementAndGet();
+
+		byte[] data;
+		try {
+			data = load( fileId, fileLength, index, loader );
+		}
+		catch( IOException | RuntimeException e ) {
+			if( owned != null ) {
+				synchronized( clock ) {
+					if( loadGeneration == this.generation ) {
+						remove( owned );
+						clock.remove( owned );
+					}
+				}
+				owned.failed( e instanceof IOException ? (IOException)e : new IOException( e ) );
+			}
+			throw e;
+		}
+
+		// Read from before the content changed, good for this read only
+		if( owned == null ) {
+			return data;
+		}
+
+		owned.loaded( data );
+		synchronized( clock ) {
+			if( loadGeneration == this.generation ) {
+				size += data.length;
+				evict();
+			}
+		}
+		return data;
+	}
+
+	private static byte[] load( long fileId, long fileLength, long index, ChunkLoader loader ) throws IOException {
+		long chunkOffset = index * CHUNK_SIZE;
+		byte[] data = new byte[ (int)Math.min( CHUNK_SIZE, fileLength - chunkOffset ) ];
+
+		// The repositories stop at whatever a single stream read returns
+		int loaded = 0;
+		while( loaded < data.length ) {
+			byte[] buffer = loaded == 0 ? data : new byte[ data.length - loaded ];
+			int read = loader.read( chunkOffset + loaded, buffer, buffer.length );
+			if( read <= 0 ) {
+				throw new IOException( "Short read of file " + String.format( "%016x", fileId ) + " at offset " + (chunkOffset + loaded) );
+			}
+			if( buffer != data ) {
+				System.arraycopy( buffer, 0, data, loaded, read );
+			}
+			loaded += read;
+		}
+		return data;
+	}
+
+	private static int slot( long fileId, long index, int mask ) {
+		// Every bit of the id counts, ids differing only in their generations are different files
+		long h = (fileId * 0x9E3779B97F4A7C15L) ^ (index * 0xC2B2AE3D27D4EB4FL);
+		h ^= h >>> 29;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+
+	private static Chunk find( AtomicReferenceArray<Chunk> table, long fileId, long index ) {
+		int mask = table.length() - 1;
+		for( int i = slot( fileId, index, mask ); ; i = (i + 1) & mask ) {
+			Chunk chunk = table.get( i );
+			if( chunk == null ) {
+				return null;
+			}
+			if( chunk != REMOVED && chunk.fileId == fileId && chunk.index == index ) {
+				return chunk;
+			}
+		}
+	}
+
+	private void insert( Chunk chunk ) {
+		// Kept at most half full of chunks and markers so a probe always ends
+		if( (usedSlots + 1) * 2 > table.length() ) {
+			rehash();
+		}
+
+		AtomicReferenceArray<Chunk> current = this.table;
+		int mask = current.length() - 1;
+		for( int i = slot( chunk.fileId, chunk.index, mask ); ; i = (i + 1) & mask ) {
+			Chunk found = current.get( i );
+			if( found == null || found == REMOVED ) {
+				if( found == null ) {
+					usedSlots++;
+				}
+				current.set( i, chunk );
+				return;
+			}
+		}
+	}
+
+	private void remove( Chunk chunk ) {
+		AtomicReferenceArray<Chunk> current = this.table;
+		int mask = current.length() - 1;
+		for( int i = slot( chunk.fileId, chunk.index, mask ); ; i = (i + 1) & mask ) {
+			Chunk found = current.get( i );
+			if( found == null ) {
+				return;
+			}
+			if( found == chunk ) {
+				current.set( i, REMOVED );
+				return;
+			}
+		}
+	}
+
+	private void rehash() {
+		int length = MIN_TABLE_SIZE;
+		while( length < (clock.size() + 1) * 4 ) {
+			length <<= 1;
+		}
+
+		AtomicReferenceArray<Chunk> rehashed = new AtomicReferenceArray<>( length );
+		int mask = length - 1;
+		for( Chunk chunk : clock ) {
+			int i = slot( chunk.fileId, chunk.index, mask );
+			while( rehashed.get( i ) != null ) {
+				i = (i + 1) & mask;
+			}
+			rehashed.set( i, chunk );
+		}
+
+		this.table = rehashed;
+		this.usedSlots = clock.size();
+	}
+
+	private void evict() {
+		while( size > capacity ) {
+			Chunk chunk = clock.pollFirst();
+			if( chunk == null ) {
+				return;
+			}
+
+			// Still being read, it isn't in the size yet
+			if( chunk.data == null ) {
+				clock.addLast( chunk );
+				continue;
+			}
+
+			if( chunk.referenced ) {
+				chunk.referenced = false;
+				clock.addLast( chunk );
+				continue;
+			}
+
+			remove( chunk );
+			size -= chunk.data.length;
+			evictions.incrementAndGet();
+		}
+	}
+
+	public void clear() {
+		synchronized( clock ) {
+			generation++;
+			table = new AtomicReferenceArray<>( MIN_TABLE_SIZE );
+			usedSlots = 0;
+			clock.clear();
+			size = 0;
+		}
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public long getSize() {
+		synchronized( clock ) {
+			return size;
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+}
@@ -1,7 +1,9 @@
 package net.tmclean.pxeserver.image.aggregate;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.function.Consumer;
 
 import net.tmclean.pxeserver.image.Image;
 import net.tmclean.pxeserver.image.ImageFileEntry;
@@ -19,10 +21,26 @@ public interface ImageContentDirectory {
     	return id & 0xff000000L;
     }
 
+	/**
+	 * Starts opening the image if it isn't open, without waiting for it.
+	 *
+	 * @return whether calls for the image answer without waiting for it to be indexed
+	 */
+	default boolean isImageReady( Image image ) throws IOException {
+		return true;
+	}
+
 	long getImageFileSize( Image image, String filePath ) throws IOException;
 	
 	boolean imageFilePathExists( Image image, String filePath ) throws IOException;
 	
+	/**
+	 * @return the path of the entry matching the given one ignoring case, or null if there is none
+	 */
+	default String findImagePathIgnoreCase( Image image, String filePath ) throws IOException {
+		return imageFilePathExists( image, filePath ) ? filePath : null;
+	}
+	
 	ImageFileEntry getFileEntry( Image image, String filePath ) throws IOException;
 
 	long filePathToId( Image image, String filePath ) throws IOException;
@@ -34,5 +52,25 @@ public interface ImageContentDirectory {
 		return readImageFile( image, filePath, data, 0, data.length );
 	}
 	
-	int readImageFile( Image image, String filePath, byte[] data, int offset, int length ) throws IOException;
+	int readImageFile( Image image, String filePath, byte[] data, long offset, int length ) throws IOException;
+	
+	/**
+	 * Reads the file with an id from {@link #filePathToId(Image, String)}, so a
+	 * transfer looks its path up once rather than for every block.
+	 */
+	int readImageFileById( Image image, long fileId, byte[] data, long offset, int length ) throws IOException;
+	
+	/**
+	 * @return the file on disk holding the content, or null if it only exists inside the image
+	 */
+	default File getImageLocalFile( Image image, String filePath ) throws IOException {
+		return null;
+	}
+
+	/**
+	 * Registers a listener called with each image whose content, or whose place
+	 * in the catalog, has changed.
+	 */
+	default void addChangeListener( Consumer<Image> listener ) {
+	}
 }
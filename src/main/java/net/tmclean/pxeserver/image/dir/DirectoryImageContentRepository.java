@@ -1,156 +1,484 @@
 package net.tmclean.pxeserver.image.dir;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.FileVisitOption;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
+import java.util.concurrent.RecursiveTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import net.tmclean.pxeserver.image.Image;
 import net.tmclean.pxeserver.image.ImageContentRepository;
 import net.tmclean.pxeserver.image.ImageFileEntry;
+import net.tmclean.pxeserver.image.ImageTable;
+import net.tmclean.pxeserver.image.ImageTableStore;
 
+/**
+ * Serves an image kept as a directory tree. Unless -Dpxeserver.watch=false,
+ * the tree is watched and changes are applied to a copy of the table of
+ * contents that then replaces it, so readers never wait on an update.
+ */
 public class DirectoryImageContentRepository implements ImageContentRepository {
 
+	private static final Logger _log = LoggerFactory.getLogger( DirectoryImageContentRepository.class );
+
 	private final Image image;
-	
+	private final ImageTableStore tableStore;
+	private final DirectoryWatcher watcher;
+	private final boolean watch = Boolean.parseBoolean( System.getProperty( "pxeserver.watch", "true" ) );
+
 	private File baseDir;
-	
-	private Map<String, File> tableOfContents = null;
-	private Map<String, Long> filenameToId = null;
-	private Map<Long, String> idToFilename = null;
-	
-	public DirectoryImageContentRepository( Image image ) throws IOException {
+
+	// Only the watch thread replaces the table
+	private volatile ImageTable tableOfContents = null;
+
+	// Kept so the watcher can tell this image's directories from the others'
+	private final DirectoryWatcher.Listener watchListener = this::changed;
+	private volatile Runnable changeListener = () -> {};
+
+	private final FileChannelPool channels = new FileChannelPool( Integer.getInteger( "pxeserver.dir.maxOpenFiles", 256 ) );
+
+	public DirectoryImageContentRepository( Image image, ImageTableStore tableStore, DirectoryWatcher watcher ) throws IOException {
 		this.image = image;
+		this.tableStore = tableStore;
+		this.watcher = watcher;
 	}
-	
+
 	public void init() throws IOException {
-		
+
 		this.baseDir = new File( image.getLocation() );
 
-		this.filenameToId    = new ConcurrentHashMap<>();
-		this.idToFilename    = new ConcurrentHashMap<>();
-		this.tableOfContents = new ConcurrentHashMap<>();
-
-		AtomicLong i = new AtomicLong( 0 );
-		
-		Files.walk( baseDir.toPath(), FileVisitOption.FOLLOW_LINKS ).forEach( e -> {
-			String path = e.toString();
-			path = path.replace( '\\', '/' );
-			path = path.replace( baseDir.getAbsolutePath().replace( '\\', '/' ), "" );
-			
-			if( path.endsWith( "/" ) ) {
-				path = path.substring( 0, path.length()-1 );
+		Path root = baseDir.toPath();
+		if( !Files.isDirectory( root ) ) {
+			throw new NoSuchFileException( root.toString() );
+		}
+
+		// A stored table is brought up to date rather than rebuilt, so entries keep
+		// the file ids clients may still hold from before the image was closed
+		ImageTable stored = tableStore.load( image, 0L, 0L );
+		if( stored == null ) {
+			this.tableOfContents = scan();
+			tableStore.save( image, 0L, 0L, this.tableOfContents );
+		}
+		else if( isCurrent( stored ) ) {
+			this.tableOfContents = stored;
+		}
+		else {
+			ImageTable.Builder table = new ImageTable.Builder( stored );
+			reconcile( table, ImageTable.ROOT, root, true );
+			this.tableOfContents = table.build();
+			tableStore.save( image, 0L, 0L, this.tableOfContents );
+		}
+
+		_log.info( "Indexed {} entries of image {}", tableOfContents.size(), image.getName() );
+
+		if( watch ) {
+			ImageTable toc = this.tableOfContents;
+			for( int i = 0; i < toc.size(); i++ ) {
+				if( toc.isDirectory( i ) && !toc.isRemoved( i ) ) {
+					register( root.resolve( toc.getPath( i ) ) );
+				}
 			}
-			
-			if( path.startsWith( "/" ) ) {
-				path = path.substring( 1 );
+		}
+	}
+
+	@Override
+	public void setChangeListener( Runnable listener ) {
+		this.changeListener = listener;
+	}
+
+	private void changed( Set<Path> dirs, boolean overflow ) throws IOException {
+		// Events were lost, so go over the whole tree
+		apply( overflow ? Collections.singleton( baseDir.toPath() ) : dirs, overflow );
+	}
+
+	private void register( Path dir ) {
+		if( !watch ) {
+			return;
+		}
+		try {
+			this.watcher.register( dir, this.watchListener );
+		}
+		catch( IOException e ) {
+			_log.warn( "Failed to watch {} in image {}", dir, image.getName(), e );
+		}
+	}
+
+	private void apply( Set<Path> dirs, boolean recursive ) throws IOException {
+		Path root = baseDir.toPath();
+		ImageTable.Builder table = new ImageTable.Builder( this.tableOfContents );
+
+		for( Path dir : dirs ) {
+			int row = table.indexOf( root.relativize( dir ).toString().replace( File.separatorChar, '/' ) );
+
+			// A directory that has gone is taken out when its parent is looked at
+			if( row >= 0 && table.isDirectory( row ) ) {
+				reconcile( table, row, dir, recursive );
 			}
-			
-			if( path.trim().isEmpty() ) {
-				return;
+		}
+
+		if( !table.isChanged() ) {
+			return;
+		}
+
+		ImageTable updated = table.build();
+		this.tableOfContents = updated;
+
+		_log.info( "Updated {} directories of image {}", dirs.size(), image.getName() );
+
+		tableStore.save( image, 0L, 0L, updated );
+		this.changeListener.run();
+	}
+
+	/**
+	 * Brings the entries of a directory in line with what is on disk.
+	 */
+	private void reconcile( ImageTable.Builder table, int row, Path dir, boolean recursive ) {
+		Map<String, Integer> existing = new HashMap<>();
+		for( int child = table.getFirstChild( row ); child >= 0; child = table.getNextSibling( child ) ) {
+			existing.put( table.getName( child ), child );
+		}
+
+		try( DirectoryStream<Path> stream = Files.newDirectoryStream( dir ) ) {
+			BasicFileAttributes dirAttrs = Files.readAttributes( dir, BasicFileAttributes.class );
+			table.update( row, dirAttrs.size(), dirAttrs.lastModifiedTime().toMillis() );
+
+			for( Path path : stream ) {
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes( path, BasicFileAttributes.class );
+				}
+				catch( IOException e ) {
+					continue;
+				}
+
+				String name = path.getFileName().toString();
+				Integer child = existing.remove( name );
+
+				if( child != null && table.isDirectory( child ) != attrs.isDirectory() ) {
+					table.remove( child );
+					this.channels.invalidate( path );
+					child = null;
+				}
+
+				if( child == null ) {
+					int added = table.add( row, name, attrs.size(), attrs.lastModifiedTime().toMillis(), 0L, attrs.isDirectory() );
+
+					if( attrs.isDirectory() ) {
+						addAll( table, added, new ScanTask( path, ancestorKeys( path ) ).invoke() );
+						registerTree( table, added, path );
+					}
+				}
+				else {
+					if( table.update( child, attrs.size(), attrs.lastModifiedTime().toMillis() ) && !attrs.isDirectory() ) {
+						this.channels.invalidate( path );
+					}
+					if( recursive && attrs.isDirectory() ) {
+						reconcile( table, child, path, true );
+					}
+				}
 			}
-			
-			this.tableOfContents.put( path, new File( baseDir, path ) );
-			
-			long fileId = i.incrementAndGet() | image.getId();
-			System.out.println( path + " ::: " + String.format( "%016x", fileId ) );
-			
-			filenameToId.put( path,   fileId );
-			idToFilename.put( fileId, path   );
-		});
+		}
+		catch( NoSuchFileException e ) {
+			return;
+		}
+		catch( IOException e ) {
+			_log.warn( "Failed to list {} in image {}", dir, image.getName(), e );
+			return;
+		}
+
+		for( Map.Entry<String, Integer> gone : existing.entrySet() ) {
+			table.remove( gone.getValue() );
+			this.channels.invalidate( dir.resolve( gone.getKey() ) );
+		}
+	}
+
+	private void registerTree( ImageTable.Builder table, int row, Path dir ) {
+		register( dir );
+		for( int child = table.getFirstChild( row ); child >= 0; child = table.getNextSibling( child ) ) {
+			if( table.isDirectory( child ) ) {
+				registerTree( table, child, dir.resolve( table.getName( child ) ) );
+			}
+		}
+	}
+
+	/**
+	 * The file keys of a directory and those above it, for a scan starting part way down the tree.
+	 */
+	private Set<Object> ancestorKeys( Path dir ) throws IOException {
+		Set<Object> keys = Collections.emptySet();
+		for( Path p = dir; p != null; p = p.getParent() ) {
+			keys = withKey( keys, Files.readAttributes( p, BasicFileAttributes.class ) );
+			if( p.equals( baseDir.toPath() ) ) {
+				break;
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Adding, removing or renaming an entry touches its directory, so a stored
+	 * table is current while every directory still has the time it recorded.
+	 * Files rewritten in place aren't noticed.
+	 */
+	private boolean isCurrent( ImageTable table ) {
+		try {
+			for( int i = 0; i < table.size(); i++ ) {
+				if( table.isDirectory( i ) && !table.isRemoved( i ) && Files.getLastModifiedTime( new File( baseDir, table.getPath( i ) ).toPath() ).toMillis() != table.getLastModified( i ) ) {
+					return false;
+				}
+			}
+			return true;
+		}
+		catch( IOException e ) {
+			return false;
+		}
+	}
+
+	private ImageTable scan() throws IOException {
+		Path root = baseDir.toPath();
+		BasicFileAttributes rootAttrs = Files.readAttributes( root, BasicFileAttributes.class );
+
+		// Directories are listed in parallel on the pool indexing the image, then
+		// added to the table in a single depth first pass so rows come out in the
+		// same order on every scan
+		List<Node> entries = new ScanTask( root, withKey( Collections.emptySet(), rootAttrs ) ).invoke();
+
+		ImageTable.Builder table = new ImageTable.Builder( rootAttrs.lastModifiedTime().toMillis(), 0L );
+		addAll( table, ImageTable.ROOT, entries );
+		return table.build();
+	}
+
+	private static void addAll( ImageTable.Builder table, int parent, List<Node> entries ) {
+		for( Node node : entries ) {
+			int row = table.add(
+				parent,
+				node.name,
+				node.attrs.size(),
+				node.attrs.lastModifiedTime().toMillis(),
+				0L,
+				node.attrs.isDirectory()
+			);
+
+			if( node.children != null ) {
+				addAll( table, row, node.children.join() );
+			}
+		}
+	}
+
+	private static Set<Object> withKey( Set<Object> keys, BasicFileAttributes attrs ) {
+		Set<Object> result = new HashSet<>( keys );
+		if( attrs.fileKey() != null ) {
+			result.add( attrs.fileKey() );
+		}
+		return result;
+	}
+
+	private static class Node {
+		final String name;
+		final BasicFileAttributes attrs;
+		ScanTask children = null;
+
+		Node( String name, BasicFileAttributes attrs ) {
+			this.name = name;
+			this.attrs = attrs;
+		}
+	}
+
+	private class ScanTask extends RecursiveTask<List<Node>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+
+		// The directories above this one, so a symlink back up the tree is not followed forever
+		private final Set<Object> ancestors;
+
+		ScanTask( Path dir, Set<Object> ancestors ) {
+			this.dir = dir;
+			this.ancestors = ancestors;
+		}
+
+		@Override
+		protected List<Node> compute() {
+			List<Node> entries = new ArrayList<>();
+
+			try( DirectoryStream<Path> stream = Files.newDirectoryStream( dir ) ) {
+				for( Path path : stream ) {
+					BasicFileAttributes attrs;
+					try {
+						attrs = Files.readAttributes( path, BasicFileAttributes.class );
+					}
+					catch( IOException e ) {
+						skip( path, e.toString() );
+						continue;
+					}
+
+					Node node = new Node( path.getFileName().toString(), attrs );
+
+					if( attrs.isDirectory() ) {
+						if( attrs.fileKey() != null && ancestors.contains( attrs.fileKey() ) ) {
+							skip( path, "symlink loop" );
+							continue;
+						}
+
+						node.children = new ScanTask( path, withKey( ancestors, attrs ) );
+						node.children.fork();
+					}
+
+					entries.add( node );
+				}
+			}
+			catch( IOException e ) {
+				skip( dir, e.toString() );
+			}
+
+			return entries;
+		}
+
+		private void skip( Path path, String reason ) {
+			// Unreadable entries and symlink loops are left out rather than failing the image
+			_log.warn( "Skipping {} in image {}: {}", path, image.getName(), reason );
+		}
 	}
 
 	@Override
-	public void destroy() {}
-	
+	public void destroy() throws IOException {
+		this.watcher.unregister( this.watchListener );
+		this.channels.close();
+	}
+
+	private int indexOf( String filePath ) throws IOException {
+		int i = this.tableOfContents.indexOf( filePath );
+		if( i < 0 ) {
+			throw new IOException( "File " + filePath + " not found in image " + image.getName() );
+		}
+		return i;
+	}
+
 	@Override
 	public long getFileSize( String filePath ) throws IOException {
-		return this.tableOfContents.get( filePath ).length();
+		return this.tableOfContents.getLength( indexOf( filePath ) );
 	}
 
 	@Override
 	public boolean filePathExists( String filePath ) throws IOException {
-		
-		return this.tableOfContents.containsKey( filePath );
+
+		return this.tableOfContents.indexOf( filePath ) >= 0;
+	}
+
+	@Override
+	public String findPathIgnoreCase( String filePath ) throws IOException {
+		ImageTable toc = this.tableOfContents;
+		int i = toc.indexOfIgnoreCase( filePath );
+		return i < 0 ? null : toc.getPath( i );
 	}
 
 	@Override
 	public long filePathToId( String filePath ) throws IOException {
-		if( !filePathExists( filePath ) ) {
+		ImageTable toc = this.tableOfContents;
+		int i = toc.indexOf( filePath );
+		if( i < 0 ) {
 			throw new IOException( "File " + filePath + " not found in image " + image.getName() );
 		}
-		
-		return this.filenameToId.get( filePath );
+		return toc.getFileId( i ) | image.getId();
 	}
 
 	@Override
 	public String idToFilePath( long id ) throws IOException {
-		return this.idToFilename.get( id );
+		if( imageFileIdToImageId( id ) != image.getId() ) {
+			return null;
+		}
+
+		ImageTable toc = this.tableOfContents;
+		int i = toc.indexOfId( id );
+		return i < 0 ? null : toc.getPath( i );
 	}
 
 	@Override
-	public int readFile( String filePath, byte[] data, int offset, int length ) throws IOException {
-		File file = this.tableOfContents.get( filePath );
-		try( InputStream is = new FileInputStream( file ) ){
-			is.skip( offset );
-			return is.read( data );
+	public long getFileSizeById( long fileId ) throws IOException {
+		ImageTable toc = this.tableOfContents;
+		return toc.getLength( indexOfId( toc, fileId ) );
+	}
+
+	private int indexOfId( ImageTable toc, long fileId ) throws IOException {
+		int i = imageFileIdToImageId( fileId ) == image.getId() ? toc.indexOfId( fileId ) : -1;
+		if( i < 0 ) {
+			throw new IOException( "File id " + Long.toHexString( fileId ) + " not found in image " + image.getName() );
 		}
+		return i;
+	}
+
+	@Override
+	public int readFile( String filePath, byte[] data, long offset, int length ) throws IOException {
+		ImageTable toc = this.tableOfContents;
+		int i = toc.indexOf( filePath );
+		if( i < 0 ) {
+			throw new IOException( "File " + filePath + " not found in image " + image.getName() );
+		}
+		return read( toc, i, data, offset, length );
+	}
+
+	@Override
+	public int readFileById( long fileId, byte[] data, long offset, int length ) throws IOException {
+		ImageTable toc = this.tableOfContents;
+		return read( toc, indexOfId( toc, fileId ), data, offset, length );
+	}
+
+	private int read( ImageTable toc, int i, byte[] data, long offset, int length ) throws IOException {
+		File file = new File( baseDir, toc.getPath( i ) );
+
+		// offset is the position in the file, data is filled from its start
+		ByteBuffer buffer = ByteBuffer.wrap( data, 0, Math.min( length, data.length ) );
+
+		int total = this.channels.read( file.toPath(), buffer, offset );
+		return total == 0 && length > 0 ? -1 : total;
+	}
+
+	@Override
+	public File getLocalFile( String filePath ) throws IOException {
+		ImageTable toc = this.tableOfContents;
+		int i = toc.indexOf( filePath );
+		return i < 0 ? null : new File( baseDir, toc.getPath( i ) );
 	}
 
 	@Override
 	public ImageFileEntry getFileEntry( String filePath ) throws IOException {
 
-		File file = this.tableOfContents.get( filePath );
-		
-		if( file == null ) {
+		ImageTable toc = this.tableOfContents;
+		int i = toc.indexOf( filePath );
+
+		if( i < 0 ) {
 			throw new IOException( "Failed to locate file " + filePath + " in image " + image.getName() );
 		}
-		
+
 		ImageFileEntry result = new ImageFileEntry();
-		result.setName( file.getName() );
+		result.setName( toc.getName( i ) );
 		result.setPath( filePath );
-		result.setLength( file.length() );
-		result.setLastModified( file.lastModified() );
-		result.setDirectory( file.isDirectory() );
-		
+		result.setLength( toc.getLength( i ) );
+		result.setLastModified( toc.getLastModified( i ) );
+		result.setDirectory( toc.isDirectory( i ) );
+
 		return result;
 	}
-	
+
 	@Override
 	public List<String> listPath( String filePath ) throws IOException {
-		 Set<String> paths = this.tableOfContents.keySet();
-		 List<String> result = paths.stream().collect( Collectors.toList() );
-		 
-		return result
-			.stream()
-			.filter( p -> {
-				System.out.println( "      Checking prefix " + p );
-				return matchesPrefix( p, filePath );
-			})
-			.collect( Collectors.toList() );
-	}
-
-	
-	private boolean matchesPrefix( String actualPath, String prefix ) {
-		if( "/".equals( prefix ) ) {
-			prefix = "";
-		}
-		
-		if( prefix == null || "".equals( prefix.trim() ) ) {
-			return !actualPath.trim().isEmpty() && !actualPath.contains( "/" );
-		}
-		else if( !actualPath.equals( prefix ) && actualPath.indexOf( '/', prefix.length() + 1 ) < 0 ) {
-			return  actualPath.trim().startsWith( prefix.trim() );
-		}
-		
-		return false;
+		ImageTable toc = this.tableOfContents;
+		int i = toc.indexOf( filePath == null ? "" : filePath );
+		return i < 0 ? Collections.emptyList() : toc.listChildren( i );
 	}
 }
@@ -0,0 +1,145 @@
+package net.tmclean.pxeserver.image.dir;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One watch service and thread for the directories of every image. Changes
+ * are gathered until the trees have been quiet for a moment, or for at most
+ * the batch time, so a copy or unpack into a tree lands as one update rather
+ * than one per file. A listener that fails is logged and keeps its watches.
+ */
+public class DirectoryWatcher implements Closeable {
+
+	private static final Logger _log = LoggerFactory.getLogger( DirectoryWatcher.class );
+
+	public interface Listener {
+		/**
+		 * @param dirs the watched directories whose entries changed
+		 * @param overflow whether events were lost, so anything under the listener's directories may have changed
+		 */
+		void changed( Set<Path> dirs, boolean overflow ) throws IOException;
+	}
+
+	private static final long SETTLE_MILLIS = 250L;
+	private static final long BATCH_MILLIS  = 2000L;
+
+	// Guarded by this
+	private WatchService watchService = null;
+	private final Map<WatchKey, List<Listener>> keys = new HashMap<>();
+	private boolean closed = false;
+
+	/**
+	 * Watches a directory for entries being created, deleted or modified.
+	 */
+	public synchronized void register( Path dir, Listener listener ) throws IOException {
+		if( closed ) {
+			throw new IOException( "Directory watcher is closed" );
+		}
+
+		if( watchService == null ) {
+			watchService = dir.getFileSystem().newWatchService();
+
+			WatchService started = watchService;
+			Thread thread = new Thread( () -> watch( started ), "image-watch" );
+			thread.setDaemon( true );
+			thread.start();
+		}
+
+		// Images sharing a directory get the same key
+		WatchKey key = dir.register( watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY );
+		List<Listener> listeners = keys.computeIfAbsent( key, k -> new ArrayList<>( 1 ) );
+		if( !listeners.contains( listener ) ) {
+			listeners.add( listener );
+		}
+	}
+
+	/**
+	 * Stops watching every directory registered for the listener.
+	 */
+	public synchronized void unregister( Listener listener ) {
+		Iterator<Map.Entry<WatchKey, List<Listener>>> it = keys.entrySet().iterator();
+		while( it.hasNext() ) {
+			Map.Entry<WatchKey, List<Listener>> entry = it.next();
+			if( entry.getValue().remove( listener ) && entry.getValue().isEmpty() ) {
+				entry.getKey().cancel();
+				it.remove();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+		keys.clear();
+		if( watchService != null ) {
+			watchService.close();
+		}
+	}
+
+	private void watch( WatchService service ) {
+		try {
+			while( true ) {
+				WatchKey key = service.take();
+
+				Map<Listener, Set<Path>> changes = new HashMap<>();
+				Set<Listener> overflowed = new HashSet<>();
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( BATCH_MILLIS );
+
+				do {
+					boolean overflow = false;
+					for( WatchEvent<?> event : key.pollEvents() ) {
+						overflow |= event.kind() == StandardWatchEventKinds.OVERFLOW;
+					}
+
+					synchronized( this ) {
+						List<Listener> listeners = keys.get( key );
+						if( listeners != null ) {
+							for( Listener listener : listeners ) {
+								changes.computeIfAbsent( listener, l -> new HashSet<>() ).add( (Path)key.watchable() );
+								if( overflow ) {
+									overflowed.add( listener );
+								}
+							}
+						}
+
+						// The directory is gone, its parent's listener takes it out of the table
+						if( !key.reset() ) {
+							keys.remove( key );
+						}
+					}
+				}
+				while( System.nanoTime() - deadline < 0 && (key = service.poll( SETTLE_MILLIS, TimeUnit.MILLISECONDS )) != null );
+
+				for( Map.Entry<Listener, Set<Path>> change : changes.entrySet() ) {
+					try {
+						change.getKey().changed( change.getValue(), overflowed.contains( change.getKey() ) );
+					}
+					catch( IOException | RuntimeException e ) {
+						_log.error( "Failed to apply changes to {}", change.getValue(), e );
+					}
+				}
+			}
+		}
+		catch( InterruptedException | ClosedWatchServiceException e ) {
+			// Closed
+		}
+	}
+}
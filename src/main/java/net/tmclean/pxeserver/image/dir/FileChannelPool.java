@@ -0,0 +1,205 @@
+package net.tmclean.pxeserver.image.dir;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps recently read files open so a read is a single positional read rather
+ * than an open, skip and close. Positional reads don't move the channel's
+ * position, so every reader of a file shares one channel. Handles are counted
+ * and the least recently used idle ones are closed past the limit.
+ * <p>
+ * Reads of open files take no lock. A reader interrupted mid read closes the
+ * shared channel under everyone else, so a read that finds its channel closed
+ * drops it and tries again on a fresh one.
+ */
+public class FileChannelPool implements Closeable {
+
+	private static final Logger _log = LoggerFactory.getLogger( FileChannelPool.class );
+
+	private static final class Handle {
+		private final Path path;
+		private final FileChannel channel;
+
+		// The pool holds one reference while the handle is in the map, the
+		// channel is closed when the count drops to 0 and never revived
+		private final AtomicInteger refs = new AtomicInteger( 1 );
+
+		private volatile long lastUsed = System.nanoTime();
+
+		private Handle( Path path, FileChannel channel ) {
+			this.path = path;
+			this.channel = channel;
+		}
+
+		private boolean retain() {
+			while( true ) {
+				int current = refs.get();
+				if( current == 0 ) {
+					return false;
+				}
+				if( refs.compareAndSet( current, current + 1 ) ) {
+					return true;
+				}
+			}
+		}
+
+		private void release() {
+			if( refs.decrementAndGet() == 0 ) {
+				try {
+					channel.close();
+				}
+				catch( IOException e ) {
+					_log.warn( "Failed to close {}", path, e );
+				}
+			}
+		}
+	}
+
+	private final int maxOpen;
+
+	private final Map<Path, Handle> handles = new ConcurrentHashMap<>();
+
+	public FileChannelPool( int maxOpen ) {
+		this.maxOpen = maxOpen;
+	}
+
+	/**
+	 * Reads from the given file position until the buffer is full or the file ends.
+	 *
+	 * @return the number of bytes read
+	 */
+	public int read( Path path, ByteBuffer buffer, long position ) throws IOException {
+		int start = buffer.position();
+
+		while( true ) {
+			Handle handle = acquire( path );
+			try {
+				long next = position + (buffer.position() - start);
+				while( buffer.hasRemaining() ) {
+					int read = handle.channel.read( buffer, next );
+					if( read < 0 ) {
+						break;
+					}
+					next += read;
+				}
+				return buffer.position() - start;
+			}
+			catch( ClosedChannelException e ) {
+				retire( handle );
+
+				// This thread was the one interrupted, let it go
+				if( Thread.currentThread().isInterrupted() ) {
+					throw e;
+				}
+			}
+			finally {
+				handle.release();
+			}
+		}
+	}
+
+	private Handle acquire( Path path ) throws IOException {
+		while( true ) {
+			Handle handle = handles.get( path );
+			if( handle == null ) {
+				handle = open( path );
+			}
+
+			if( handle.retain() ) {
+				handle.lastUsed = System.nanoTime();
+				return handle;
+			}
+
+			// Closed between the lookup and retaining it
+			handles.remove( path, handle );
+		}
+	}
+
+	private Handle open( Path path ) throws IOException {
+		// Opened outside any lock so a slow open doesn't hold up reads of other files
+		Handle opened = new Handle( path, FileChannel.open( path, StandardOpenOption.READ ) );
+
+		Handle existing = handles.putIfAbsent( path, opened );
+		if( existing != null ) {
+			opened.release();
+			return existing;
+		}
+
+		if( handles.size() > maxOpen ) {
+			evict();
+		}
+		return opened;
+	}
+
+	private void evict() {
+		while( handles.size() > maxOpen ) {
+			Handle eldest = null;
+			long eldestUsed = 0;
+
+			for( Handle handle : handles.values() ) {
+				// Only the pool's own reference, nobody is reading it
+				if( handle.refs.get() != 1 ) {
+					continue;
+				}
+
+				long used = handle.lastUsed;
+				if( eldest == null || used - eldestUsed < 0 ) {
+					eldest = handle;
+					eldestUsed = used;
+				}
+			}
+
+			if( eldest == null ) {
+				return;
+			}
+			retire( eldest );
+		}
+	}
+
+	/**
+	 * Takes a handle out of the pool, its channel is closed once the last reader is done.
+	 */
+	private void retire( Handle handle ) {
+		if( handles.remove( handle.path, handle ) ) {
+			handle.release();
+		}
+	}
+
+	/**
+	 * Drops the file, or every file under the directory, so the next read opens
+	 * whatever is at the path now. Readers of the old file finish with it first.
+	 */
+	public void invalidate( Path path ) {
+		for( Handle handle : handles.values() ) {
+			if( handle.path.startsWith( path ) ) {
+				retire( handle );
+			}
+		}
+	}
+
+	/**
+	 * Closes every idle file and those in use once their readers are done.
+	 */
+	@Override
+	public void close() throws IOException {
+		for( Handle handle : handles.values() ) {
+			retire( handle );
+		}
+	}
+
+	public int getOpenCount() {
+		return handles.size();
+	}
+}
@@ -2,153 +2,196 @@ package net.tmclean.pxeserver.image.iso;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
 
-import com.github.stephenc.javaisotools.loopfs.iso9660.Iso9660FileEntry;
-import com.github.stephenc.javaisotools.loopfs.iso9660.Iso9660FileSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import net.tmclean.pxeserver.image.Image;
 import net.tmclean.pxeserver.image.ImageContentRepository;
 import net.tmclean.pxeserver.image.ImageFileEntry;
+import net.tmclean.pxeserver.image.ImageTable;
+import net.tmclean.pxeserver.image.ImageTableStore;
 
 public class IsoImageContentRepository implements ImageContentRepository {
 
+	private static final Logger _log = LoggerFactory.getLogger( IsoImageContentRepository.class );
+
 	private final Image image;
-	
-	private Iso9660FileSystem isoFs = null;
-	private Map<String, Iso9660FileEntry> tableOfContents = null;
-	private Map<String, Long> filenameToId = null;
-	private Map<Long, String> idToFilename = null;
-	
-	public IsoImageContentRepository( Image image ) {
+	private final ImageTableStore tableStore;
+
+	// Replaced if a reader is interrupted, which closes the channel for every reader
+	private volatile FileChannel isoChannel = null;
+	private volatile boolean destroyed = false;
+	private ImageTable tableOfContents = null;
+
+	public IsoImageContentRepository( Image image, ImageTableStore tableStore ) {
 		this.image = image;
+		this.tableStore = tableStore;
 	}
-	
+
 	@Override
 	public void init() throws IOException {
 
 		File isoFile = new File( image.getLocation() );
-		
-		this.isoFs           = new Iso9660FileSystem( isoFile, true );
-		this.filenameToId    = new ConcurrentHashMap<>();
-		this.idToFilename    = new ConcurrentHashMap<>();
-		this.tableOfContents = new ConcurrentHashMap<>();
-
-		AtomicLong i = new AtomicLong( 0 );
-		isoFs.forEach( e -> {
-			String path = e.getPath();
-			
-			if( path.endsWith( "/" ) ) {
-				path = path.substring( 0, path.length()-1 );
+
+		long size = isoFile.length();
+		long modified = isoFile.lastModified();
+
+		this.tableOfContents = tableStore.load( image, size, modified );
+
+		if( this.tableOfContents == null ) {
+			try( IsoImageReader reader = new IsoImageReader( isoFile ) ) {
+				this.tableOfContents = reader.read();
 			}
-			
-			tableOfContents.put( path, e );
-			
-			long fileId = i.incrementAndGet() | image.getId();
-			System.out.println( path + " ::: " + String.format( "%016x", fileId ) );
-			
-			filenameToId.put( path,   fileId );
-			idToFilename.put( fileId, path   );
-		});
+			tableStore.save( image, size, modified, this.tableOfContents );
+		}
+
+		this.isoChannel = FileChannel.open( isoFile.toPath(), StandardOpenOption.READ );
+
+		_log.info( "Indexed {} entries of image {}", tableOfContents.size(), image.getName() );
 	}
 
 	@Override
-	public void destroy() throws IOException {
-		this.isoFs.close();
+	public synchronized void destroy() throws IOException {
+		this.destroyed = true;
+
+		// Not open if init failed
+		if( this.isoChannel != null ) {
+			this.isoChannel.close();
+		}
 	}
-	
 
-	@Override
-	public long filePathToId( String filePath ) throws IOException {
-		if( !filePathExists( filePath ) ) {
+	private synchronized FileChannel reopen( FileChannel broken ) throws IOException {
+		if( this.destroyed ) {
+			throw new ClosedChannelException();
+		}
+		if( this.isoChannel == broken ) {
+			this.isoChannel = FileChannel.open( new File( image.getLocation() ).toPath(), StandardOpenOption.READ );
+		}
+		return this.isoChannel;
+	}
+
+	private int indexOf( String filePath ) throws IOException {
+		int i = this.tableOfContents.indexOf( filePath );
+		if( i < 0 ) {
 			throw new IOException( "File " + filePath + " not found in image " + image.getName() );
 		}
-		
-		return this.filenameToId.get( filePath ).longValue();
+		return i;
+	}
+
+	private int indexOfId( long fileId ) throws IOException {
+		int i = imageFileIdToImageId( fileId ) == image.getId() ? this.tableOfContents.indexOfId( fileId ) : -1;
+		if( i < 0 ) {
+			throw new IOException( "File id " + Long.toHexString( fileId ) + " not found in image " + image.getName() );
+		}
+		return i;
+	}
+
+	@Override
+	public long filePathToId( String filePath ) throws IOException {
+		return tableOfContents.getFileId( indexOf( filePath ) ) | image.getId();
 	}
 
 	@Override
 	public String idToFilePath( long id ) throws IOException {
-		return this.idToFilename.get( id );
+		if( imageFileIdToImageId( id ) != image.getId() ) {
+			return null;
+		}
+
+		int i = this.tableOfContents.indexOfId( id );
+		return i < 0 ? null : this.tableOfContents.getPath( i );
 	}
 
 	@Override
 	public boolean filePathExists( String filePath ) throws IOException {
-		return this.tableOfContents.containsKey( filePath );
+		return this.tableOfContents.indexOf( filePath ) >= 0;
+	}
+
+	@Override
+	public String findPathIgnoreCase( String filePath ) throws IOException {
+		int i = this.tableOfContents.indexOfIgnoreCase( filePath );
+		return i < 0 ? null : this.tableOfContents.getPath( i );
 	}
-	
+
 	@Override
 	public ImageFileEntry getFileEntry( String filePath ) throws IOException {
-		if( !filePathExists( filePath ) ) {
-			throw new IOException( "File " + filePath + " not found in image " + image.getName() );
-		}
-		
-		Iso9660FileEntry entry = this.tableOfContents.get( filePath );
+		int i = indexOf( filePath );
 
 		ImageFileEntry result = new ImageFileEntry();
-		result.setName( entry.getName() );
-		result.setPath( entry.getPath() );
-		result.setLength( entry.getSize() );
-		result.setLastModified( entry.getLastModifiedTime() );
-		result.setDirectory( entry.isDirectory() );
-		
+		result.setName( tableOfContents.getName( i ) );
+		result.setPath( filePath );
+		result.setLength( tableOfContents.getLength( i ) );
+		result.setLastModified( tableOfContents.getLastModified( i ) );
+		result.setDirectory( tableOfContents.isDirectory( i ) );
+
 		return result;
 	}
 
 	@Override
 	public long getFileSize( String filePath ) throws IOException {
-		if( !filePathExists( filePath ) ) {
-			throw new IOException( "File " + filePath + " not found in image " + image.getName() );
-		}
-		
-		
-		return tableOfContents.get( filePath ).getSize();
+		return tableOfContents.getLength( indexOf( filePath ) );
 	}
 
 	@Override
-	public int readFile( String filePath, byte[] data, int offset, int length ) throws IOException {
-		if( !filePathExists( filePath ) ) {
-			throw new IOException( "File " + filePath + " not found in image " + image.getName() );
-		}
-		
-		Iso9660FileEntry entry = this.tableOfContents.get( filePath );
-		
-		try( InputStream is = this.isoFs.getInputStream( entry ) ) {
-			is.skip( offset );
-			return is.read( data );
-		}
+	public long getFileSizeById( long fileId ) throws IOException {
+		return tableOfContents.getLength( indexOfId( fileId ) );
 	}
 
 	@Override
-	public List<String> listPath( String filePath ) throws IOException {
+	public int readFile( String filePath, byte[] data, long offset, int length ) throws IOException {
+		return read( indexOf( filePath ), data, offset, length );
+	}
 
-		 Set<String> paths = this.tableOfContents.keySet();
-		 List<String> result = paths.stream().collect( Collectors.toList() );
-		 
-		return result
-			.stream()
-			.filter( p -> matchesPrefix( p, filePath ) )
-			.collect( Collectors.toList() );
-	}
-	
-	private boolean matchesPrefix( String actualPath, String prefix ) {
-		if( prefix != null && "/".equals( prefix ) ) {
-			prefix = "";
-		}
-		
-		if( prefix == null || "".equals( prefix.trim() ) ) {
-			return !actualPath.trim().isEmpty() && !actualPath.contains( "/" );
+	@Override
+	public int readFileById( long fileId, byte[] data, long offset, int length ) throws IOException {
+		return read( indexOfId( fileId ), data, offset, length );
+	}
+
+	private int read( int i, byte[] data, long offset, int length ) throws IOException {
+		// Files are stored in one contiguous extent, so any block of one is a positional
+		// read of the image rather than a stream skipped from the start of the file.
+		// Positional reads leave the channel alone, so NFS and TFTP threads can share it.
+		long remaining = tableOfContents.getLength( i ) - offset;
+		if( remaining <= 0 ) {
+			return length > 0 ? -1 : 0;
 		}
-		else if( !actualPath.equals( prefix ) && actualPath.indexOf( '/', prefix.length() + 1 ) < 0 ) {
-			return  actualPath.trim().startsWith( prefix.trim() );
+
+		ByteBuffer buffer = ByteBuffer.wrap( data, 0, (int)Math.min( Math.min( length, data.length ), remaining ) );
+		long position = tableOfContents.getExtent( i ) + offset;
+
+		FileChannel channel = this.isoChannel;
+		while( buffer.hasRemaining() ) {
+			int read;
+			try {
+				read = channel.read( buffer, position );
+			}
+			catch( ClosedChannelException e ) {
+				// This thread was the one interrupted, let it go
+				if( Thread.currentThread().isInterrupted() ) {
+					throw e;
+				}
+				channel = reopen( channel );
+				continue;
+			}
+
+			if( read < 0 ) {
+				break;
+			}
+			position += read;
 		}
-		
-		return false;
+
+		return buffer.position();
+	}
+
+	@Override
+	public List<String> listPath( String filePath ) throws IOException {
+		int i = this.tableOfContents.indexOf( filePath == null ? "" : filePath );
+		return i < 0 ? Collections.emptyList() : this.tableOfContents.listChildren( i );
 	}
 }
@@ -0,0 +1,379 @@
+package net.tmclean.pxeserver.image.iso;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.tmclean.pxeserver.image.ImageTable;
+
+/**
+ * Walks the directory records of an ISO9660 image through a memory mapped
+ * view of it and builds an {@link ImageTable} of it. Names come from Rock Ridge
+ * when the image has it, then Joliet, then plain ISO9660.
+ */
+public class IsoImageReader implements Closeable {
+
+	private static final Logger _log = LoggerFactory.getLogger( IsoImageReader.class );
+
+	public static final int SECTOR_SIZE = 2048;
+
+	private static final int  FIRST_DESCRIPTOR = 16;
+	private static final long SEGMENT_SIZE     = 1L << 30;
+
+	private static final int DESCRIPTOR_PRIMARY      = 1;
+	private static final int DESCRIPTOR_SUPPLEMENTAL = 2;
+	private static final int DESCRIPTOR_TERMINATOR   = 255;
+
+	private static final int ROOT_RECORD_OFFSET = 156;
+
+	private static final int FLAG_DIRECTORY    = 0x02;
+	private static final int FLAG_MULTI_EXTENT = 0x80;
+
+	// Bounds continuation areas and relocated directories on a damaged image
+	private static final int MAX_CONTINUATIONS = 16;
+
+	private enum Names { ISO9660, JOLIET, ROCK_RIDGE }
+
+	private static class Directory {
+		final long extent;
+		final long size;
+		final int row;
+
+		Directory( long extent, long size, int row ) {
+			this.extent = extent;
+			this.size = size;
+			this.row = row;
+		}
+	}
+
+	private static class SystemUse {
+		final ByteArrayOutputStream name = new ByteArrayOutputStream();
+		boolean hasName = false;
+		long childLink = -1;
+		boolean relocated = false;
+	}
+
+	private final File isoFile;
+	private final FileChannel channel;
+	private final long imageSize;
+	private final MappedByteBuffer[] segments;
+
+	private int blockSize = SECTOR_SIZE;
+	private Names names = Names.ISO9660;
+	private int suspSkip = 0;
+
+	public IsoImageReader( File isoFile ) throws IOException {
+		this.isoFile = isoFile;
+		this.channel = FileChannel.open( isoFile.toPath(), StandardOpenOption.READ );
+		this.imageSize = channel.size();
+		this.segments = new MappedByteBuffer[ (int)((imageSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE) ];
+	}
+
+	public ImageTable read() throws IOException {
+		long primary = -1;
+		long joliet  = -1;
+
+		for( long sector = FIRST_DESCRIPTOR; ; sector++ ) {
+			long pos = sector * SECTOR_SIZE;
+			if( pos + SECTOR_SIZE > imageSize || !"CD001".equals( getString( pos + 1, 5 ) ) ) {
+				break;
+			}
+
+			int type = getByte( pos );
+			if( type == DESCRIPTOR_TERMINATOR ) {
+				break;
+			}
+			else if( type == DESCRIPTOR_PRIMARY && primary < 0 ) {
+				primary = pos;
+			}
+			else if( type == DESCRIPTOR_SUPPLEMENTAL && joliet < 0 && isJoliet( pos ) ) {
+				joliet = pos;
+			}
+		}
+
+		if( primary < 0 ) {
+			throw new IOException( isoFile + " is not an ISO9660 image" );
+		}
+
+		this.blockSize = getShortLE( primary + 128 );
+
+		long root = primary + ROOT_RECORD_OFFSET;
+		this.suspSkip = findRockRidge( root );
+
+		if( suspSkip >= 0 ) {
+			this.names = Names.ROCK_RIDGE;
+		}
+		else if( joliet >= 0 ) {
+			this.names = Names.JOLIET;
+			root = joliet + ROOT_RECORD_OFFSET;
+		}
+
+		Directory rootDir = new Directory( getExtent( root ), getIntLE( root + 10 ), ImageTable.ROOT );
+		ImageTable.Builder table = new ImageTable.Builder( getTimestamp( root + 18 ), rootDir.extent );
+
+		walk( rootDir, table );
+
+		return table.build();
+	}
+
+	private void walk( Directory rootDir, ImageTable.Builder table ) throws IOException {
+		Deque<Directory> pending = new ArrayDeque<>();
+		Set<Long> visited = new HashSet<>();
+		pending.push( rootDir );
+
+		while( !pending.isEmpty() ) {
+			Directory dir = pending.pop();
+			if( !visited.add( dir.extent ) ) {
+				continue;
+			}
+
+			long start = dir.extent;
+			long end = Math.min( start + dir.size, imageSize );
+			long pos = start;
+
+			String lastName = null;
+			int lastIndex = -1;
+			boolean lastContinues = false;
+
+			while( pos < end ) {
+				int recordLength = getByte( pos );
+				if( recordLength == 0 ) {
+					// Records never straddle a sector, the rest of this one is padding
+					pos = start + ((pos - start) / SECTOR_SIZE + 1) * SECTOR_SIZE;
+					continue;
+				}
+
+				long record = pos;
+				pos += recordLength;
+
+				int nameLength = getByte( record + 32 );
+				if( nameLength == 1 && getByte( record + 33 ) <= 1 ) {
+					continue;
+				}
+
+				int flags = getByte( record + 25 );
+				long extent = getExtent( record );
+				long size = getIntLE( record + 10 );
+				boolean directory = (flags & FLAG_DIRECTORY) != 0;
+
+				String name;
+				if( names == Names.ROCK_RIDGE ) {
+					long systemUse = record + 33 + nameLength + (nameLength % 2 == 0 ? 1 : 0) + suspSkip;
+
+					SystemUse su = new SystemUse();
+					readSystemUse( systemUse, record + recordLength, su, 0 );
+
+					if( su.relocated ) {
+						// Listed again through the child link where it belongs
+						continue;
+					}
+
+					if( su.childLink >= 0 ) {
+						directory = true;
+						extent = su.childLink * blockSize;
+						size = getIntLE( extent + 10 );
+					}
+
+					name = su.hasName
+						? new String( su.name.toByteArray(), StandardCharsets.UTF_8 )
+						: getIsoName( record + 33, nameLength, directory );
+				}
+				else if( names == Names.JOLIET ) {
+					name = stripVersion( new String( getBytes( record + 33, nameLength ), StandardCharsets.UTF_16BE ) );
+				}
+				else {
+					name = getIsoName( record + 33, nameLength, directory );
+				}
+
+				if( lastContinues && name.equals( lastName ) ) {
+					// Further extents of a file over 4GB, served as one when they follow each other
+					if( table.getExtent( lastIndex ) + table.getLength( lastIndex ) == extent ) {
+						table.extend( lastIndex, size );
+					}
+					else {
+						_log.warn( "Ignoring non-contiguous extent of {} in {}", name, isoFile );
+					}
+					lastContinues = (flags & FLAG_MULTI_EXTENT) != 0;
+					continue;
+				}
+
+				lastName = name;
+				lastIndex = table.add( dir.row, name, size, getTimestamp( record + 18 ), extent, directory );
+				lastContinues = (flags & FLAG_MULTI_EXTENT) != 0;
+
+				if( directory ) {
+					pending.push( new Directory( extent, size, lastIndex ) );
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes to skip at the start of every system use area,
+	 * or -1 if the image has no Rock Ridge extensions
+	 */
+	private int findRockRidge( long rootRecord ) throws IOException {
+		long dot = getExtent( rootRecord );
+		if( dot + 34 > imageSize ) {
+			return -1;
+		}
+
+		// The SP entry opens the system use area of the root's "." record
+		int nameLength = getByte( dot + 32 );
+		long systemUse = dot + 33 + nameLength + (nameLength % 2 == 0 ? 1 : 0);
+
+		if( systemUse + 7 > dot + getByte( dot ) ) {
+			return -1;
+		}
+
+		if( !"SP".equals( getString( systemUse, 2 ) ) || getByte( systemUse + 4 ) != 0xBE || getByte( systemUse + 5 ) != 0xEF ) {
+			return -1;
+		}
+
+		return getByte( systemUse + 6 );
+	}
+
+	private void readSystemUse( long pos, long end, SystemUse su, int depth ) throws IOException {
+		long continuation = -1;
+		long continuationLength = 0;
+
+		while( pos + 4 <= end ) {
+			String signature = getString( pos, 2 );
+			int length = getByte( pos + 2 );
+			if( length < 4 || pos + length > end ) {
+				break;
+			}
+
+			if( "NM".equals( signature ) ) {
+				// Flags for "." and ".." carry no name
+				if( (getByte( pos + 4 ) & 0x06) == 0 ) {
+					su.name.write( getBytes( pos + 5, length - 5 ) );
+					su.hasName = true;
+				}
+			}
+			else if( "CL".equals( signature ) ) {
+				su.childLink = getIntLE( pos + 4 );
+			}
+			else if( "RE".equals( signature ) ) {
+				su.relocated = true;
+			}
+			else if( "CE".equals( signature ) ) {
+				continuation = getIntLE( pos + 4 ) * blockSize + getIntLE( pos + 12 );
+				continuationLength = getIntLE( pos + 20 );
+			}
+			else if( "ST".equals( signature ) ) {
+				break;
+			}
+
+			pos += length;
+		}
+
+		if( continuation >= 0 && depth < MAX_CONTINUATIONS ) {
+			readSystemUse( continuation, Math.min( continuation + continuationLength, imageSize ), su, depth + 1 );
+		}
+	}
+
+	private boolean isJoliet( long descriptor ) throws IOException {
+		// UCS-2 level 1, 2 or 3 escape sequence
+		if( getByte( descriptor + 88 ) != '%' || getByte( descriptor + 89 ) != '/' ) {
+			return false;
+		}
+
+		int level = getByte( descriptor + 90 );
+		return level == '@' || level == 'C' || level == 'E';
+	}
+
+	private String getIsoName( long pos, int length, boolean directory ) throws IOException {
+		String name = stripVersion( getString( pos, length ) );
+		if( !directory && name.endsWith( "." ) ) {
+			name = name.substring( 0, name.length() - 1 );
+		}
+		return name;
+	}
+
+	private static String stripVersion( String name ) {
+		int semicolon = name.lastIndexOf( ';' );
+		return semicolon < 0 ? name : name.substring( 0, semicolon );
+	}
+
+	private long getExtent( long record ) throws IOException {
+		return getIntLE( record + 2 ) * blockSize;
+	}
+
+	/**
+	 * Directory record dates are years since 1900 through seconds, then the
+	 * offset from GMT in 15 minute steps.
+	 */
+	private long getTimestamp( long pos ) throws IOException {
+		byte[] date = getBytes( pos, 7 );
+		try {
+			return LocalDateTime
+				.of( 1900 + (date[0] & 0xff), date[1], date[2], date[3], date[4], date[5] )
+				.toEpochSecond( ZoneOffset.ofTotalSeconds( date[6] * 15 * 60 ) ) * 1000L;
+		}
+		catch( DateTimeException e ) {
+			return 0L;
+		}
+	}
+
+	private MappedByteBuffer segment( long pos ) throws IOException {
+		if( pos < 0 || pos >= imageSize ) {
+			throw new IOException( "Read past the end of " + isoFile + " at " + pos );
+		}
+
+		int index = (int)(pos / SEGMENT_SIZE);
+		if( segments[index] == null ) {
+			long start = index * SEGMENT_SIZE;
+			segments[index] = channel.map( FileChannel.MapMode.READ_ONLY, start, Math.min( SEGMENT_SIZE, imageSize - start ) );
+		}
+		return segments[index];
+	}
+
+	private int getByte( long pos ) throws IOException {
+		return segment( pos ).get( (int)(pos % SEGMENT_SIZE) ) & 0xff;
+	}
+
+	private int getShortLE( long pos ) throws IOException {
+		return getByte( pos ) | (getByte( pos + 1 ) << 8);
+	}
+
+	private long getIntLE( long pos ) throws IOException {
+		return (getShortLE( pos ) | ((long)getShortLE( pos + 2 ) << 16)) & 0xffffffffL;
+	}
+
+	private byte[] getBytes( long pos, int length ) throws IOException {
+		byte[] bytes = new byte[ length ];
+		for( int i = 0; i < length; i++ ) {
+			bytes[i] = (byte)getByte( pos + i );
+		}
+		return bytes;
+	}
+
+	private String getString( long pos, int length ) throws IOException {
+		return new String( getBytes( pos, length ), StandardCharsets.ISO_8859_1 );
+	}
+
+	/**
+	 * Closes the image. The mapping itself goes with the reader once it is
+	 * no longer referenced.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -145,13 +145,10 @@ public class ImageVfs implements VirtualFileSystem {
 	public int read( Inode inode, byte[] data, long offset, int count ) throws IOException {
         long inodeNo = getInodeNumber( inode );
         
-        String path      = resolveInode( inodeNo );
-		String imageName = path.substring( 0, path.indexOf( '/' ) );
-		String filePath  = path.substring( path.indexOf( "/" )+1 );
-    	
-		Image image = this.imageRepository.getImage( imageName );
+        // Inode numbers are file ids, so a read needs no path
+		Image image = getImage( this.contentDirectory.imageFileIdToImageId( inodeNo ) );
 		
-        return this.contentDirectory.readImageFile( image, filePath, data, (int)offset, count );
+        return this.contentDirectory.readImageFileById( image, inodeNo, data, offset, count );
 	}
 
 	@Override
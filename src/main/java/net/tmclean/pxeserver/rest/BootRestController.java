@@ -0,0 +1,244 @@
+package net.tmclean.pxeserver.rest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+
+import net.tmclean.pxeserver.image.Image;
+import net.tmclean.pxeserver.image.ImageFileEntry;
+import net.tmclean.pxeserver.image.ImageRepository;
+import net.tmclean.pxeserver.image.aggregate.ImageContentDirectory;
+import net.tmclean.pxeserver.rest.util.PathUtils;
+
+/**
+ * Serves image content over HTTP for iPXE and UEFI HTTP Boot, which can pull
+ * a kernel and initrd far faster than TFTP. Supports single byte ranges and
+ * conditional requests. Files of directory images are handed to the
+ * container's sendfile support when it has it, and otherwise copied with
+ * FileChannel.transferTo.
+ */
+@RestController
+public class BootRestController {
+
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	// Tomcat's NIO connector sends a file straight from the page cache when these are set
+	private static final String SENDFILE_SUPPORT  = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START    = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END      = "org.apache.tomcat.sendfile.end";
+
+	private final ImageRepository imageRepo;
+	private final ImageContentDirectory contentDirectory;
+
+	public BootRestController(
+		ImageRepository imageRepo,
+		ImageContentDirectory contentDirectory
+	) {
+		this.imageRepo = imageRepo;
+		this.contentDirectory = contentDirectory;
+	}
+
+	@GetMapping( "/boot/{image}/**" )
+	public void boot(
+		@PathVariable( "image" ) String imageName,
+		HttpServletRequest request,
+		HttpServletResponse response
+	) throws IOException {
+		String path = PathUtils.extractRestOfWildcardPath( request );
+
+		Image image = this.imageRepo.getImage( imageName );
+
+		if( image == null || !this.contentDirectory.imageFilePathExists( image, path ) ) {
+			response.sendError( HttpServletResponse.SC_NOT_FOUND );
+			return;
+		}
+
+		ImageFileEntry entry = this.contentDirectory.getFileEntry( image, path );
+		if( entry.isDirectory() ) {
+			response.sendError( HttpServletResponse.SC_NOT_FOUND );
+			return;
+		}
+
+		long length = entry.getLength();
+		long lastModified = entry.getLastModified();
+		String etag = buildETag( this.contentDirectory.filePathToId( image, path ), length, lastModified );
+
+		response.setHeader( "Accept-Ranges", "bytes" );
+		response.setHeader( "ETag", etag );
+		if( lastModified > 0 ) {
+			response.setDateHeader( "Last-Modified", lastModified );
+		}
+
+		if( isNotModified( request, etag, lastModified ) ) {
+			response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+			return;
+		}
+
+		long start = 0;
+		long end   = length - 1;
+
+		String range = request.getHeader( "Range" );
+		if( range != null && isRangeCurrent( request, etag, lastModified ) ) {
+			long[] bounds = parseRange( range, length );
+
+			if( bounds == null ) {
+				response.setHeader( "Content-Range", "bytes */" + length );
+				response.sendError( HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE );
+				return;
+			}
+
+			// Multiple ranges aren't worth a multipart body, the whole file is a valid answer
+			if( bounds.length == 2 ) {
+				start = bounds[0];
+				end   = bounds[1];
+				response.setStatus( HttpServletResponse.SC_PARTIAL_CONTENT );
+				response.setHeader( "Content-Range", "bytes " + start + "-" + end + "/" + length );
+			}
+		}
+
+		long count = end - start + 1;
+
+		response.setContentType( "application/octet-stream" );
+		response.setContentLengthLong( count );
+
+		if( "HEAD".equals( request.getMethod() ) || count <= 0 ) {
+			return;
+		}
+
+		File localFile = this.contentDirectory.getImageLocalFile( image, path );
+
+		if( localFile == null ) {
+			copyFromImage( image, path, start, count, response.getOutputStream() );
+		}
+		else if( Boolean.TRUE.equals( request.getAttribute( SENDFILE_SUPPORT ) ) ) {
+			request.setAttribute( SENDFILE_FILENAME, localFile.getAbsolutePath() );
+			request.setAttribute( SENDFILE_START, start );
+			request.setAttribute( SENDFILE_END, start + count );
+		}
+		else {
+			transferFile( localFile, start, count, response.getOutputStream() );
+		}
+	}
+
+	private static String buildETag( long fileId, long length, long lastModified ) {
+		return "\"" + Long.toHexString( fileId ) + "-" + Long.toHexString( length ) + "-" + Long.toHexString( lastModified ) + "\"";
+	}
+
+	private static boolean isNotModified( HttpServletRequest request, String etag, long lastModified ) {
+		String ifNoneMatch = request.getHeader( "If-None-Match" );
+		if( ifNoneMatch != null ) {
+			return "*".equals( ifNoneMatch.trim() ) || ifNoneMatch.contains( etag );
+		}
+
+		long ifModifiedSince = request.getDateHeader( "If-Modified-Since" );
+		return ifModifiedSince >= 0 && lastModified > 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	private static boolean isRangeCurrent( HttpServletRequest request, String etag, long lastModified ) {
+		String ifRange = request.getHeader( "If-Range" );
+		if( ifRange == null ) {
+			return true;
+		}
+
+		if( ifRange.trim().startsWith( "\"" ) ) {
+			return etag.equals( ifRange.trim() );
+		}
+
+		long date = request.getDateHeader( "If-Range" );
+		return date >= 0 && lastModified / 1000 == date / 1000;
+	}
+
+	/**
+	 * @return the first and last byte of a single satisfiable range, an empty
+	 * array to send the whole file, or null if nothing in the range exists
+	 */
+	static long[] parseRange( String range, long length ) {
+		if( !range.startsWith( "bytes=" ) ) {
+			return new long[ 0 ];
+		}
+
+		String spec = range.substring( "bytes=".length() ).trim();
+		if( spec.indexOf( ',' ) >= 0 ) {
+			return new long[ 0 ];
+		}
+
+		int dash = spec.indexOf( '-' );
+		if( dash < 0 ) {
+			return new long[ 0 ];
+		}
+
+		try {
+			String first = spec.substring( 0, dash ).trim();
+			String last  = spec.substring( dash + 1 ).trim();
+
+			long start;
+			long end;
+
+			if( first.isEmpty() ) {
+				// A suffix range, the final n bytes
+				long suffix = Long.parseLong( last );
+				if( suffix <= 0 ) {
+					return null;
+				}
+				start = Math.max( 0, length - suffix );
+				end   = length - 1;
+			}
+			else {
+				start = Long.parseLong( first );
+				end   = last.isEmpty() ? length - 1 : Math.min( Long.parseLong( last ), length - 1 );
+			}
+
+			if( start >= length || start > end ) {
+				return null;
+			}
+
+			return new long[] { start, end };
+		}
+		catch( NumberFormatException e ) {
+			return new long[ 0 ];
+		}
+	}
+
+	private void copyFromImage( Image image, String path, long start, long count, OutputStream out ) throws IOException {
+		byte[] buffer = new byte[ (int)Math.min( COPY_BUFFER_SIZE, count ) ];
+
+		long copied = 0;
+		while( copied < count ) {
+			int n = (int)Math.min( buffer.length, count - copied );
+			int read = this.contentDirectory.readImageFile( image, path, buffer, start + copied, n );
+			if( read <= 0 ) {
+				throw new IOException( "Short read of " + path + " in image " + image.getName() + " at offset " + (start + copied) );
+			}
+
+			out.write( buffer, 0, Math.min( read, n ) );
+			copied += Math.min( read, n );
+		}
+	}
+
+	private static void transferFile( File file, long start, long count, OutputStream out ) throws IOException {
+		try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+			WritableByteChannel target = Channels.newChannel( out );
+
+			long transferred = 0;
+			while( transferred < count ) {
+				long n = channel.transferTo( start + transferred, count - transferred, target );
+				if( n <= 0 ) {
+					throw new IOException( "Short transfer of " + file + " at offset " + (start + transferred) );
+				}
+				transferred += n;
+			}
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package net.tmclean.pxeserver.rest;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import net.tmclean.pxeserver.tftp.TFTPMetrics;
+import net.tmclean.pxeserver.tftp.TFTPTransferStats;
+
+@RestController
+@RequestMapping( "/tftp" )
+public class TFTPRestController {
+
+	private final TFTPMetrics metrics;
+	
+	public TFTPRestController( TFTPMetrics metrics ) {
+		this.metrics = metrics;
+	}
+	
+	@GetMapping( "/sessions" )
+	public List<TFTPTransferStats> sessions() {
+		return metrics.getLiveSessions();
+	}
+	
+	@GetMapping( "/metrics" )
+	public Map<String, Object> metrics() {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put( "live",        metrics.getLiveSessions().size() );
+		result.put( "completed",   metrics.getCompleted() );
+		result.put( "failed",      metrics.getFailed() );
+		result.put( "bytesSent",   metrics.getBytesSent() );
+		result.put( "retransmits", metrics.getRetransmits() );
+		result.put( "images",      metrics.getImageLatencies() );
+		result.put( "files",       metrics.getFileLatencies() );
+		return result;
+	}
+}
@@ -0,0 +1,32 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Recycles fixed size direct buffers so the packet send path doesn't allocate
+ * once the pool has warmed up.
+ */
+public class DirectBufferPool {
+
+	private final int bufferSize;
+	private final Deque<ByteBuffer> free = new ArrayDeque<>();
+
+	public DirectBufferPool( int bufferSize ) {
+		this.bufferSize = bufferSize;
+	}
+
+	public synchronized ByteBuffer acquire() {
+		ByteBuffer buffer = free.pollFirst();
+		if( buffer == null ) {
+			buffer = ByteBuffer.allocateDirect( bufferSize );
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	public synchronized void release( ByteBuffer buffer ) {
+		free.offerFirst( buffer );
+	}
+}
@@ -0,0 +1,313 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.net.tftp.TFTP;
+import org.apache.commons.net.tftp.TFTPErrorPacket;
+import org.apache.commons.net.tftp.TFTPPacket;
+import org.apache.commons.net.tftp.TFTPPacketException;
+import org.apache.commons.net.tftp.TFTPReadRequestPacket;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import net.tmclean.pxeserver.image.aggregate.ImageContentDirectory;
+import net.tmclean.pxeserver.util.DaemonService;
+
+/**
+ * TFTP engine multiplexing every transfer over a single selector thread.
+ * Each session gets its own channel and transfer ID like {@link TFTPServer},
+ * but packets are encoded into pooled direct buffers instead of commons-net
+ * packet objects. Enabled with -Dpxeserver.tftp.engine=nio.
+ */
+@Service
+@ConditionalOnProperty( name = "pxeserver.tftp.engine", havingValue = "nio" )
+public class NioTFTPServer extends DaemonService {
+
+	private static final long TICK_MILLIS = 10L;
+	private static final int  WHEEL_SIZE  = 1024;
+
+	private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos( 1 );
+
+	private static String buildSessionStr( TFTPPacket packet ) {
+		return packet.getAddress().getHostAddress() + ":" + packet.getPort();
+	}
+
+	private final ImageContentDirectory contentDirectory;
+	private final TFTPFileResolver fileResolver;
+	private final TFTPMetrics metrics;
+
+	private final int port = Integer.getInteger( "pxeserver.tftp.port", TFTP.DEFAULT_PORT );
+
+	private final TFTPSessionTable<NioTFTPSession> sessions = new TFTPSessionTable<>();
+	private final DirectBufferPool bufferPool = new DirectBufferPool( TFTPCodec.packetBufferSize( TFTPOptions.getMaxBlockSize() ) );
+	private final TimerWheel<NioTFTPSession> timerWheel = 
+		new TimerWheel<>( 
+			TimeUnit.MILLISECONDS.toNanos( TICK_MILLIS ), 
+			WHEEL_SIZE, 
+			System.nanoTime(), 
+			this::retransmit 
+		);
+
+	// Parked sessions whose next block has been read, queued by the reader threads
+	private final Queue<NioTFTPSession> resumable = new ConcurrentLinkedQueue<>();
+
+	public NioTFTPServer( ImageContentDirectory contentDirectory, TFTPFileResolver fileResolver, TFTPMetrics metrics ) {
+		this.contentDirectory = contentDirectory;
+		this.fileResolver = fileResolver;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public Void call() throws IOException {
+		try( Selector selector = Selector.open();
+			 DatagramChannel listener = DatagramChannel.open() ) {
+			
+			listener.configureBlocking( false );
+			listener.bind( new InetSocketAddress( port ) );
+			listener.register( selector, SelectionKey.OP_READ );
+
+			eventLoop( selector, listener );
+		}
+		finally {
+			sessions.forEach( NioTFTPSession::close );
+		}
+
+		return null;
+	}
+
+	private void eventLoop( Selector selector, DatagramChannel listener ) throws IOException {
+		ByteBuffer request  = ByteBuffer.allocate( TFTPOptions.MAX_REQUEST_SIZE );
+		ByteBuffer received = ByteBuffer.allocateDirect( TFTPOptions.MAX_REQUEST_SIZE );
+
+		long lastSweep = System.nanoTime();
+
+		while( !Thread.currentThread().isInterrupted() ) {
+			selector.select( TICK_MILLIS );
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while( keys.hasNext() ) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				if( !key.isValid() ) {
+					continue;
+				}
+
+				if( key.channel() == listener ) {
+					acceptRequests( selector, listener, request );
+				}
+				else {
+					readSession( (NioTFTPSession)key.attachment(), received );
+				}
+			}
+
+			NioTFTPSession session;
+			while( (session = resumable.poll()) != null ) {
+				resumeSession( session );
+			}
+
+			long now = System.nanoTime();
+			timerWheel.advance( now );
+
+			if( now - lastSweep >= SWEEP_INTERVAL ) {
+				sessions.expireIdle( now );
+				lastSweep = now;
+			}
+		}
+	}
+
+	private void acceptRequests( Selector selector, DatagramChannel listener, ByteBuffer request ) {
+		while( true ) {
+			InetSocketAddress from = null;
+			TFTPPacket packet = null;
+			try {
+				request.clear();
+				from = (InetSocketAddress)listener.receive( request );
+				if( from == null ) {
+					return;
+				}
+
+				DatagramPacket datagram = new DatagramPacket( request.array(), 0, request.position(), from );
+				packet = TFTPPacket.newTFTPPacket( datagram );
+
+				// Only requests arrive here, each transfer continues on its own channel
+				if( packet instanceof TFTPReadRequestPacket ) {
+					processReadRequest( selector, listener, (TFTPReadRequestPacket)packet, TFTPOptions.fromRequest( datagram ) );
+				}
+				else if( !(packet instanceof TFTPErrorPacket) ) {
+					sendError( listener, from, TFTPErrorPacket.ILLEGAL_OPERATION, "Only read requests are supported" );
+				}
+			}
+			catch( IOException | TFTPPacketException | RuntimeException e ) {
+				e.printStackTrace();
+
+				if( packet != null ) {
+					sendError( listener, from, TFTPErrorPacket.UNDEFINED, "ERROR" );
+				}
+			}
+		}
+	}
+
+	private void processReadRequest( Selector selector, DatagramChannel listener, TFTPReadRequestPacket readReq, TFTPOptions options ) throws IOException {
+
+		String sessionStr = buildSessionStr( readReq );
+		InetSocketAddress client = new InetSocketAddress( readReq.getAddress(), readReq.getPort() );
+
+		System.out.println( "Got read request for " + readReq.getFilename() + " with mode " + TFTP.getModeName( readReq.getMode() ) );
+
+		// A repeated request means the client has not heard from the session yet,
+		// which retransmits on its own
+		if( sessions.contains( readReq.getAddress(), readReq.getPort() ) ) {
+			System.out.println( "Ignoring duplicate read request from " + sessionStr );
+			return;
+		}
+
+		TFTPResolvedFile file;
+		try {
+			file = this.fileResolver.resolve( readReq.getFilename() );
+		}
+		catch( TFTPImageLoadingException e ) {
+			sendError( listener, client, TFTPErrorPacket.UNDEFINED, e.getMessage() );
+			return;
+		}
+
+		if( file == null ) {
+			sendError( listener, client, TFTPErrorPacket.FILE_NOT_FOUND, "Failed to locate file " + readReq.getFilename() );
+			return;
+		}
+
+		long fileLength = file.getLength();
+		options.acknowledgeTransferSize( fileLength );
+
+		// The selector thread never reads the disk itself, so blocks are always read ahead
+		TFTPSendContext sendCtx = new TFTPSendContext( 
+			this.contentDirectory,
+			readReq.getAddress(), 
+			readReq.getPort(),
+			file.getImage(),
+			file.getFilePath(),
+			file.getFileId(),
+			fileLength,
+			options.getBlockSize(),
+			options.getWindowSize(),
+			Math.max( 1, TFTPSendContext.READ_AHEAD )
+		);
+
+		if( options.hasAcknowledgedOptions() ) {
+			System.out.println( "Acknowledging options " + options.getAcknowledged() );
+		}
+
+		DatagramChannel channel = DatagramChannel.open();
+		NioTFTPSession session = null;
+		try {
+			channel.configureBlocking( false );
+			channel.connect( client );
+
+			session = 
+				new NioTFTPSession( 
+					sessionStr, 
+					channel, 
+					sendCtx, 
+					options, 
+					bufferPool, 
+					timerWheel, 
+					s -> {
+						resumable.offer( s );
+						selector.wakeup();
+					}
+				);
+			
+			if( sessions.register( readReq.getAddress(), readReq.getPort(), session ) != TFTPSessionTable.Admission.ADDED ) {
+				channel.close();
+				sendError( listener, client, TFTPErrorPacket.UNDEFINED, "Too many sessions" );
+				return;
+			}
+			
+			channel.register( selector, SelectionKey.OP_READ, session );
+			metrics.started( sendCtx.getStats(), options );
+			session.start();
+		}
+		catch( IOException | RuntimeException e ) {
+			if( session != null ) {
+				closeSession( session );
+			}
+			else {
+				channel.close();
+			}
+			throw e;
+		}
+	}
+
+	private void readSession( NioTFTPSession session, ByteBuffer received ) {
+		try {
+			while( true ) {
+				received.clear();
+				if( session.getChannel().read( received ) <= 0 ) {
+					return;
+				}
+				received.flip();
+
+				if( session.onPacket( received ) ) {
+					closeSession( session );
+					return;
+				}
+			}
+		}
+		catch( IOException | RuntimeException e ) {
+			e.printStackTrace();
+			closeSession( session );
+		}
+	}
+
+	private void resumeSession( NioTFTPSession session ) {
+		try {
+			session.onReadAhead();
+		}
+		catch( IOException | RuntimeException e ) {
+			e.printStackTrace();
+			closeSession( session );
+		}
+	}
+
+	private void retransmit( NioTFTPSession session ) {
+		boolean alive = false;
+		try {
+			alive = session.onTimeout( System.nanoTime() );
+		}
+		catch( IOException | RuntimeException e ) {
+			e.printStackTrace();
+		}
+
+		if( !alive ) {
+			closeSession( session );
+		}
+	}
+
+	private void closeSession( NioTFTPSession session ) {
+		sessions.remove( session.getAddress(), session.getPort(), session );
+		session.close();
+	}
+
+	private void sendError( DatagramChannel listener, InetSocketAddress to, int error, String message ) {
+		ByteBuffer buffer = bufferPool.acquire();
+		try {
+			listener.send( TFTPCodec.putError( buffer, error, message ), to );
+		}
+		catch( IOException e ) {
+			e.printStackTrace();
+		}
+		finally {
+			bufferPool.release( buffer );
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.apache.commons.net.tftp.TFTPPacket;
+
+/**
+ * A read transfer on its own connected, non-blocking channel. All methods are
+ * called from the selector thread of {@link NioTFTPServer}. A window that
+ * reaches a block the disk hasn't delivered yet is parked, and the reader
+ * thread hands the session back to the selector once the block is read.
+ */
+public class NioTFTPSession implements TFTPTransport, TFTPSessionTable.Session {
+
+	private final String sessionStr;
+	private final DatagramChannel channel;
+	private final TFTPSendContext sendCtx;
+	private final TFTPOptions options;
+	private final DirectBufferPool bufferPool;
+
+	private final TimerWheel<NioTFTPSession> timerWheel;
+	private final TimerWheel.Timer<NioTFTPSession> retransmitTimer;
+	private final RttEstimator rtt;
+
+	private volatile long lastActivity = System.nanoTime();
+
+	private volatile boolean parked = false;
+	private final AtomicBoolean resumeQueued = new AtomicBoolean( false );
+
+	/**
+	 * @param resume called from a reader thread to have the selector thread call {@link #onReadAhead()}
+	 */
+	public NioTFTPSession( String sessionStr, DatagramChannel channel, TFTPSendContext sendCtx, TFTPOptions options, DirectBufferPool bufferPool, TimerWheel<NioTFTPSession> timerWheel, Consumer<NioTFTPSession> resume ) {
+		this.sessionStr = sessionStr;
+		this.channel = channel;
+		this.sendCtx = sendCtx;
+		this.options = options;
+		this.rtt = new RttEstimator( options.getTimeout() );
+		this.bufferPool = bufferPool;
+		this.timerWheel = timerWheel;
+		this.retransmitTimer = timerWheel.newTimer( this );
+
+		sendCtx.setReadAheadListener( () -> {
+			if( parked && resumeQueued.compareAndSet( false, true ) ) {
+				resume.accept( this );
+			}
+		});
+	}
+
+	public String getSessionStr() {
+		return sessionStr;
+	}
+
+	public DatagramChannel getChannel() {
+		return channel;
+	}
+
+	public InetAddress getAddress() {
+		return sendCtx.getAddress();
+	}
+
+	public int getPort() {
+		return sendCtx.getPort();
+	}
+
+	@Override
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	public void start() throws IOException {
+		if( options.hasAcknowledgedOptions() ) {
+			// The client answers the OACK with an ACK of block 0, which starts the data transfer
+			sendCtx.awaitOptionAck();
+		}
+		send();
+		rtt.sent( System.nanoTime() );
+		armTimer();
+	}
+
+	/**
+	 * @return true once the transfer has finished, successfully or not
+	 */
+	public boolean onPacket( ByteBuffer packet ) throws IOException {
+		if( packet.remaining() < 4 ) {
+			return false;
+		}
+
+		int opcode = TFTPCodec.getOpcode( packet );
+
+		if( opcode == TFTPPacket.ACKNOWLEDGEMENT ) {
+			if( sendCtx.acknowledge( TFTPCodec.getBlockNumber( packet ) ) ) {
+				long now = System.nanoTime();
+				rtt.acknowledged( now );
+				lastActivity = now;
+				
+				if( sendCtx.isComplete() ) {
+					return true;
+				}
+				
+				send();
+				rtt.sent( now );
+				armTimer();
+			}
+		}
+		else if( opcode == TFTPPacket.ERROR ) {
+			System.out.println( "Transfer to " + sessionStr + " aborted by client" );
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Resends everything past the last ACK when the retransmit timer fires.
+	 * 
+	 * @return false if the session has run out of retries and should be dropped
+	 */
+	public boolean onTimeout( long now ) throws IOException {
+		if( !rtt.timedOut( now ) ) {
+			System.out.println( "Transfer to " + sessionStr + " timed out" );
+			return false;
+		}
+
+		send();
+		armTimer();
+		return true;
+	}
+
+	/**
+	 * @return whether the window is waiting on a block that hasn't been read ahead yet
+	 */
+	public boolean isParked() {
+		return parked;
+	}
+
+	/**
+	 * Sends the rest of a parked window now that read-ahead has caught up.
+	 */
+	public void onReadAhead() throws IOException {
+		resumeQueued.set( false );
+		if( parked ) {
+			resumeWindow();
+		}
+	}
+
+	private void armTimer() {
+		timerWheel.schedule( retransmitTimer, rtt.getDeadline() );
+	}
+
+	private void send() throws IOException {
+		if( sendCtx.isAwaitingOptionAck() ) {
+			ByteBuffer buffer = bufferPool.acquire();
+			try {
+				channel.write( TFTPCodec.putOack( buffer, options ) );
+			}
+			finally {
+				bufferPool.release( buffer );
+			}
+		}
+		else {
+			sendCtx.rewindWindow();
+			resumeWindow();
+		}
+	}
+
+	private void resumeWindow() throws IOException {
+		// Parked before looking at the ring, so a block read in between is either
+		// sent here or sees the flag and queues the session
+		parked = true;
+		if( sendCtx.resumeWindow( this ) ) {
+			parked = false;
+		}
+	}
+
+	@Override
+	public void sendData( int blockNumber, byte[] data, int length ) throws IOException {
+		ByteBuffer buffer = bufferPool.acquire();
+		try {
+			channel.write( TFTPCodec.putData( buffer, blockNumber, data, length ) );
+		}
+		finally {
+			bufferPool.release( buffer );
+		}
+	}
+
+	@Override
+	public boolean awaitsReadAhead() {
+		// Waiting would hold up every session on the selector thread
+		return false;
+	}
+
+	@Override
+	public void close() {
+		parked = false;
+		sendCtx.close();
+		sendCtx.getStats().finish( sendCtx.isComplete() );
+		timerWheel.cancel( retransmitTimer );
+		try {
+			channel.close();
+		}
+		catch( IOException e ) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.net.tftp.TFTP;
+
+/**
+ * Retransmission timeout for one session, adapted from round trip samples
+ * the way TCP does it (RFC 6298): smoothed RTT plus four deviations, doubled
+ * on every timeout, and no samples taken from retransmitted windows. A client
+ * that negotiated the timeout option (RFC 2349) gets exactly that instead.
+ */
+public class RttEstimator {
+
+	public static final int MAX_RETRIES = Integer.getInteger( "pxeserver.tftp.maxRetries", 5 );
+
+	private static final long MIN_TIMEOUT     = TimeUnit.MILLISECONDS.toNanos( Integer.getInteger( "pxeserver.tftp.minTimeout", 100 ) );
+	private static final long MAX_TIMEOUT     = TimeUnit.MILLISECONDS.toNanos( Integer.getInteger( "pxeserver.tftp.maxTimeout", TFTP.DEFAULT_TIMEOUT ) );
+	private static final long INITIAL_TIMEOUT = Math.min( MAX_TIMEOUT, TimeUnit.SECONDS.toNanos( 1 ) );
+
+	private final boolean fixed;
+
+	private long srtt = -1;
+	private long rttvar = 0;
+	private long timeout;
+
+	private long sentAt = 0;
+	private boolean retransmitted = false;
+	private int retries = 0;
+
+	public RttEstimator() {
+		this( 0 );
+	}
+
+	public RttEstimator( int fixedTimeoutSeconds ) {
+		this.fixed = fixedTimeoutSeconds > 0;
+		this.timeout = this.fixed ? TimeUnit.SECONDS.toNanos( fixedTimeoutSeconds ) : INITIAL_TIMEOUT;
+	}
+
+	public void sent( long now ) {
+		this.sentAt = now;
+		this.retransmitted = false;
+	}
+
+	public void acknowledged( long now ) {
+		this.retries = 0;
+		if( !this.retransmitted ) {
+			sample( now - this.sentAt );
+		}
+	}
+
+	/**
+	 * @return false once the session has used up its retries
+	 */
+	public boolean timedOut( long now ) {
+		this.sentAt = now;
+		this.retransmitted = true;
+		if( !this.fixed ) {
+			this.timeout = Math.min( MAX_TIMEOUT, this.timeout * 2 );
+		}
+		return ++this.retries <= MAX_RETRIES;
+	}
+
+	public long getDeadline() {
+		return this.sentAt + this.timeout;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	public long getSmoothedRtt() {
+		return srtt;
+	}
+
+	public int getRetries() {
+		return retries;
+	}
+
+	private void sample( long rtt ) {
+		if( this.srtt < 0 ) {
+			this.srtt = rtt;
+			this.rttvar = rtt / 2;
+		}
+		else {
+			this.rttvar = (3 * this.rttvar + Math.abs( this.srtt - rtt )) / 4;
+			this.srtt = (7 * this.srtt + rtt) / 8;
+		}
+
+		if( this.fixed ) {
+			return;
+		}
+
+		this.timeout = Math.max( MIN_TIMEOUT, Math.min( MAX_TIMEOUT, this.srtt + 4 * this.rttvar ) );
+	}
+}
@@ -0,0 +1,85 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.net.tftp.TFTPPacket;
+
+/**
+ * Encodes and decodes TFTP packets in place, for engines that manage their
+ * own buffers instead of going through commons-net packet objects.
+ */
+public final class TFTPCodec {
+
+	// ERROR and OACK packets fit in a classic 512 byte block whatever block size is negotiated
+	public static final int MAX_CONTROL_PACKET_SIZE = TFTPPacket.SEGMENT_SIZE + 4;
+
+	/**
+	 * @return the buffer size that holds a DATA packet of the block size, or any ERROR or OACK packet
+	 */
+	public static int packetBufferSize( int blockSize ) {
+		return Math.max( 4 + blockSize, MAX_CONTROL_PACKET_SIZE );
+	}
+
+	public static int getOpcode( ByteBuffer buffer ) {
+		return buffer.getShort( 0 ) & 0xffff;
+	}
+
+	public static int getBlockNumber( ByteBuffer buffer ) {
+		return buffer.getShort( 2 ) & 0xffff;
+	}
+
+	public static int getOpcode( byte[] packet ) {
+		return ((packet[0] & 0xff) << 8) | (packet[1] & 0xff);
+	}
+
+	public static int getBlockNumber( byte[] packet ) {
+		return ((packet[2] & 0xff) << 8) | (packet[3] & 0xff);
+	}
+
+	public static void writeDataHeader( byte[] packet, int blockNumber ) {
+		packet[0] = 0;
+		packet[1] = (byte)TFTPPacket.DATA;
+		packet[2] = (byte)(blockNumber >> 8);
+		packet[3] = (byte)blockNumber;
+	}
+
+	public static ByteBuffer putData( ByteBuffer buffer, int blockNumber, byte[] data, int length ) {
+		buffer.clear();
+		buffer.putShort( (short)TFTPPacket.DATA );
+		buffer.putShort( (short)blockNumber );
+		buffer.put( data, 0, length );
+		buffer.flip();
+		return buffer;
+	}
+
+	public static ByteBuffer putAck( ByteBuffer buffer, int blockNumber ) {
+		buffer.clear();
+		buffer.putShort( (short)TFTPPacket.ACKNOWLEDGEMENT );
+		buffer.putShort( (short)blockNumber );
+		buffer.flip();
+		return buffer;
+	}
+
+	public static ByteBuffer putOack( ByteBuffer buffer, TFTPOptions options ) {
+		buffer.clear();
+		buffer.put( options.getOackBytes() );
+		buffer.flip();
+		return buffer;
+	}
+
+	public static ByteBuffer putError( ByteBuffer buffer, int error, String message ) {
+		buffer.clear();
+		buffer.putShort( (short)TFTPPacket.ERROR );
+		buffer.putShort( (short)error );
+
+		// Cut long messages short rather than overflow the buffer
+		byte[] bytes = message.getBytes( StandardCharsets.US_ASCII );
+		buffer.put( bytes, 0, Math.min( bytes.length, buffer.remaining() - 1 ) );
+		buffer.put( (byte)0 );
+		buffer.flip();
+		return buffer;
+	}
+
+	private TFTPCodec() {}
+}
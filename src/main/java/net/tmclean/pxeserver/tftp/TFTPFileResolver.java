@@ -0,0 +1,184 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.stereotype.Component;
+
+import net.tmclean.pxeserver.image.Image;
+import net.tmclean.pxeserver.image.ImageFileEntry;
+import net.tmclean.pxeserver.image.ImageRepository;
+import net.tmclean.pxeserver.image.aggregate.ImageContentDirectory;
+
+/**
+ * Maps the filename of a read request onto an image and a path within it.
+ * The first path segment names the image, anything the root image can't
+ * satisfy is retried against the image named by the next segment.
+ *
+ * Every client of a boot sends the same handful of names, so results are
+ * cached by the raw request filename, misses included. Names are matched
+ * with backslashes as separators and ignoring case as a last resort, as
+ * Windows boot loaders send them. Only files resolve, a name that is a
+ * directory is not found.
+ */
+@Component
+public class TFTPFileResolver {
+
+	/**
+	 * A resolution, or a miss if there is no file, made while the content was at the given generation.
+	 */
+	private static final class Entry {
+		private final long generation;
+		private final TFTPResolvedFile file;
+		private final long expiry;
+
+		private Entry( long generation, TFTPResolvedFile file, long expiry ) {
+			this.generation = generation;
+			this.file = file;
+			this.expiry = expiry;
+		}
+	}
+
+	private static final int  MAX_ENTRIES  = Integer.getInteger( "pxeserver.tftp.resolverCacheSize", 4096 );
+	private static final long NEGATIVE_TTL = TimeUnit.MILLISECONDS.toNanos( Long.getLong( "pxeserver.tftp.negativeCacheTtl", 30000L ) );
+
+	private final ImageRepository imageRepository;
+	private final ImageContentDirectory contentDirectory;
+
+	private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+
+	// Bumped on every change, so a resolution that raced one is never served
+	private final AtomicLong generation = new AtomicLong();
+
+	public TFTPFileResolver( ImageRepository imageRepository, ImageContentDirectory contentDirectory ) {
+		this.imageRepository = imageRepository;
+		this.contentDirectory = contentDirectory;
+
+		this.contentDirectory.addChangeListener( image -> invalidate() );
+	}
+
+	public TFTPResolvedFile resolve( String reqFilename ) throws IOException {
+
+		long current = this.generation.get();
+
+		Entry entry = this.cache.get( reqFilename );
+		if( entry != null ) {
+			if( entry.generation == current && (entry.file != null || System.nanoTime() - entry.expiry < 0) ) {
+				return entry.file;
+			}
+			this.cache.remove( reqFilename, entry );
+		}
+
+		TFTPResolvedFile file = resolveUncached( normalize( reqFilename ) );
+
+		// Request names are up to the client, so a full cache starts over rather than grow
+		if( this.cache.size() >= MAX_ENTRIES ) {
+			this.cache.clear();
+		}
+		this.cache.put( reqFilename, new Entry( current, file, file == null ? System.nanoTime() + NEGATIVE_TTL : 0L ) );
+
+		return file;
+	}
+
+	/**
+	 * Forgets every resolution, for when images or their content change.
+	 */
+	public void invalidate() {
+		this.generation.incrementAndGet();
+		this.cache.clear();
+	}
+
+	private static String normalize( String reqFilename ) {
+		String path = reqFilename.replace( '\\', '/' );
+		while( path.contains( "//" ) ) {
+			path = path.replace( "//", "/" );
+		}
+		return path;
+	}
+
+	private TFTPResolvedFile resolveUncached( String reqFilename ) throws IOException {
+
+		List<Image>  images = new ArrayList<>( 3 );
+		List<String> paths  = new ArrayList<>( 3 );
+
+		int sep = reqFilename.indexOf( '/' );
+		String imageName = sep < 0 ? "" : reqFilename.substring( 0, sep );
+		String filePath  = reqFilename.substring( sep + 1 );
+
+		addCandidate( images, paths, "".equals( imageName ) ? "/" : imageName, filePath );
+
+		if( filePath.indexOf( '/' ) >= 0 ) {
+			sep = filePath.indexOf( '/' );
+			addCandidate( images, paths, filePath.substring( 0, sep ), filePath.substring( sep + 1 ) );
+		}
+
+		// Windows clients leave off the leading slash of paths in the root image
+		if( !"".equals( imageName ) && !"/".equals( imageName ) ) {
+			addCandidate( images, paths, "/", reqFilename );
+		}
+
+		for( int i = 0; i < images.size(); i++ ) {
+			requireReady( images.get( i ) );
+			if( this.contentDirectory.imageFilePathExists( images.get( i ), paths.get( i ) ) ) {
+				TFTPResolvedFile file = newResolvedFile( images.get( i ), paths.get( i ) );
+				if( file != null ) {
+					return file;
+				}
+			}
+		}
+
+		// Images index their names lower cased too, so this is a lookup rather than a walk
+		for( int i = 0; i < images.size(); i++ ) {
+			String actualPath = this.contentDirectory.findImagePathIgnoreCase( images.get( i ), paths.get( i ) );
+			if( actualPath != null ) {
+				TFTPResolvedFile file = newResolvedFile( images.get( i ), actualPath );
+				if( file != null ) {
+					return file;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Requests are resolved on the thread taking them in, so an image still
+	 * indexing turns the request away instead of stalling every other one.
+	 * Candidates are tried in order, so one loading can't be skipped either.
+	 */
+	private void requireReady( Image image ) throws IOException {
+		if( !this.contentDirectory.isImageReady( image ) ) {
+			throw new TFTPImageLoadingException( image.getName() );
+		}
+	}
+
+	private void addCandidate( List<Image> images, List<String> paths, String imageName, String filePath ) {
+		Image image = this.imageRepository.getImage( imageName );
+		if( image != null ) {
+			images.add( image );
+			paths.add( filePath );
+		}
+	}
+
+	/**
+	 * @return the file, or null if the path is a directory
+	 */
+	private TFTPResolvedFile newResolvedFile( Image image, String filePath ) throws IOException {
+		ImageFileEntry entry = this.contentDirectory.getFileEntry( image, filePath );
+		if( entry.isDirectory() ) {
+			return null;
+		}
+
+		return new TFTPResolvedFile(
+			image,
+			filePath,
+			this.contentDirectory.filePathToId( image, filePath ),
+			entry.getLength()
+		);
+	}
+}
@@ -0,0 +1,17 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.io.IOException;
+
+/**
+ * A read request needs an image that is still being indexed. The request is
+ * turned away so the client can ask again, rather than holding up the
+ * requests for every other image while it waits.
+ */
+public class TFTPImageLoadingException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public TFTPImageLoadingException( String imageName ) {
+		super( "Image " + imageName + " is loading, try again shortly" );
+	}
+}
@@ -0,0 +1,102 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.stereotype.Component;
+
+import net.tmclean.pxeserver.util.LatencyHistogram;
+
+/**
+ * Live transfers and the time finished ones took, per image and per file.
+ * Shared by every TFTP engine. Only files that resolved are recorded, and
+ * only the -Dpxeserver.tftp.metricsFiles most recently finished ones are kept.
+ */
+@Component
+public class TFTPMetrics {
+
+	private static final int MAX_FILES = Integer.getInteger( "pxeserver.tftp.metricsFiles", 1024 );
+
+	private final Map<Long, TFTPTransferStats> live = new ConcurrentHashMap<>();
+
+	private final Map<String, LatencyHistogram> imageLatencies = new ConcurrentHashMap<>();
+
+	// Guarded by itself, in access order so the least recently finished file goes first
+	private final Map<String, LatencyHistogram> fileLatencies = new LinkedHashMap<String, LatencyHistogram>( 16, 0.75f, true ) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<String, LatencyHistogram> eldest ) {
+			return size() > MAX_FILES;
+		}
+	};
+
+	private final AtomicLong completed   = new AtomicLong();
+	private final AtomicLong failed      = new AtomicLong();
+	private final AtomicLong bytesSent   = new AtomicLong();
+	private final AtomicLong retransmits = new AtomicLong();
+
+	public void started( TFTPTransferStats stats, TFTPOptions options ) {
+		stats.started( this, options.getAcknowledged() );
+		live.put( stats.getId(), stats );
+	}
+
+	void finished( TFTPTransferStats stats ) {
+		live.remove( stats.getId() );
+
+		bytesSent.addAndGet( stats.getBytesSent() );
+		retransmits.addAndGet( stats.getRetransmits() );
+
+		// Aborted transfers would only skew the latencies towards the idle timeout
+		if( !stats.isComplete() ) {
+			failed.incrementAndGet();
+			return;
+		}
+
+		completed.incrementAndGet();
+
+		long millis = stats.getDurationMillis();
+		imageLatencies.computeIfAbsent( stats.getImage(), k -> new LatencyHistogram() ).record( millis );
+
+		LatencyHistogram fileLatency;
+		synchronized( fileLatencies ) {
+			fileLatency = fileLatencies.computeIfAbsent( stats.getImage() + ":" + stats.getFilePath(), k -> new LatencyHistogram() );
+		}
+		fileLatency.record( millis );
+	}
+
+	public List<TFTPTransferStats> getLiveSessions() {
+		return new ArrayList<>( live.values() );
+	}
+
+	public Map<String, LatencyHistogram> getImageLatencies() {
+		return Collections.unmodifiableMap( imageLatencies );
+	}
+
+	public Map<String, LatencyHistogram> getFileLatencies() {
+		synchronized( fileLatencies ) {
+			return Collections.unmodifiableMap( new LinkedHashMap<>( fileLatencies ) );
+		}
+	}
+
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	public long getRetransmits() {
+		return retransmits.get();
+	}
+}
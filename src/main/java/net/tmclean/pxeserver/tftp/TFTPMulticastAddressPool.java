@@ -0,0 +1,80 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Hands out group addresses for multicast transfers from a consecutive block
+ * starting at <code>pxeserver.tftp.multicastAddress</code>, one group per file
+ * being sent.
+ */
+public class TFTPMulticastAddressPool {
+
+	private final byte[] base;
+	private final boolean[] inUse;
+
+	public TFTPMulticastAddressPool() throws UnknownHostException {
+		this(
+			InetAddress.getByName( System.getProperty( "pxeserver.tftp.multicastAddress", "239.255.69.1" ) ),
+			Integer.getInteger( "pxeserver.tftp.multicastGroups", 64 )
+		);
+	}
+
+	public TFTPMulticastAddressPool( InetAddress base, int size ) {
+		if( !base.isMulticastAddress() ) {
+			throw new IllegalArgumentException( base.getHostAddress() + " is not a multicast address" );
+		}
+
+		this.base = base.getAddress();
+		this.inUse = new boolean[ size ];
+	}
+
+	/**
+	 * @return a free group address, or null if every group is taken
+	 */
+	public synchronized InetAddress acquire() throws UnknownHostException {
+		for( int i = 0; i < inUse.length; i++ ) {
+			if( !inUse[i] ) {
+				inUse[i] = true;
+				return toAddress( i );
+			}
+		}
+		return null;
+	}
+
+	public synchronized void release( InetAddress address ) {
+		int index = indexOf( address );
+		if( index >= 0 && index < inUse.length ) {
+			inUse[index] = false;
+		}
+	}
+
+	private InetAddress toAddress( int index ) throws UnknownHostException {
+		byte[] address = base.clone();
+
+		int carry = index;
+		for( int i = address.length - 1; i >= 0 && carry != 0; i-- ) {
+			int sum = (address[i] & 0xff) + carry;
+			address[i] = (byte)sum;
+			carry = sum >>> 8;
+		}
+
+		return InetAddress.getByAddress( address );
+	}
+
+	private int indexOf( InetAddress address ) {
+		byte[] bytes = address.getAddress();
+		if( bytes.length != base.length ) {
+			return -1;
+		}
+
+		long diff = 0;
+		for( int i = 0; i < bytes.length; i++ ) {
+			diff = (diff << 8) + ((bytes[i] & 0xff) - (base[i] & 0xff));
+			if( Math.abs( diff ) > inUse.length ) {
+				return -1;
+			}
+		}
+		return (int)diff;
+	}
+}
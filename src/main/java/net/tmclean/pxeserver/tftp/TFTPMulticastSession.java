@@ -0,0 +1,317 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.net.tftp.TFTPErrorPacket;
+import org.apache.commons.net.tftp.TFTPPacket;
+import org.apache.commons.net.tftp.TFTPPacketException;
+
+/**
+ * Sends one file to a multicast group (RFC 2090) for every client that asked
+ * for it. The client at the head of the member list is the master and the
+ * only one that ACKs, the others listen in. When the master has the whole
+ * file the next member takes over and ACKs whatever it missed, so clients
+ * that joined late get the start of the file resent to the group.
+ * <p>
+ * A member taking over ACKs a bare 16 bit block number for a transfer it
+ * wasn't ACKing, so only files of at most 65535 blocks are sent this way.
+ */
+public class TFTPMulticastSession implements Runnable, TFTPTransport, TFTPSessionTable.Session {
+
+	public static final long MAX_BLOCKS = 0xffffL;
+
+	/**
+	 * @return whether the file fits in block numbers that never wrap
+	 */
+	public static boolean canSend( long fileLength, int blockSize ) {
+		// The last block is the first one short of the block size, even if it is empty
+		return fileLength / blockSize + 1 <= MAX_BLOCKS;
+	}
+
+	private static final class Member {
+		private final InetAddress address;
+		private final int port;
+		private final TFTPOptions options;
+
+		private Member( InetAddress address, int port, TFTPOptions options ) {
+			this.address = address;
+			this.port = port;
+			this.options = options;
+		}
+
+		private String describe() {
+			return address.getHostAddress() + ":" + port;
+		}
+	}
+
+	private final TFTPSocket socket;
+	private final TFTPSendContext sendCtx;
+	private final TFTPSessionTable<? super TFTPMulticastSession> sessions;
+	private final InetAddress groupAddress;
+	private final int groupPort;
+
+	private final byte[] sendBuffer;
+	private final DatagramPacket sendDatagram;
+
+	private final Deque<Member> members = new ArrayDeque<>();
+	private Member master = null;
+	private boolean awaitingMaster = false;
+	private RttEstimator rtt = new RttEstimator();
+
+	private volatile long lastActivity = System.nanoTime();
+	private volatile boolean closed = false;
+
+	/**
+	 * @param sessions the table every member is registered in, members are taken out of it as they leave
+	 */
+	public TFTPMulticastSession( TFTPSocket socket, TFTPSendContext sendCtx, TFTPSessionTable<? super TFTPMulticastSession> sessions ) {
+		this.socket = socket;
+		this.sendCtx = sendCtx;
+		this.sessions = sessions;
+		this.groupAddress = sendCtx.getAddress();
+		this.groupPort = sendCtx.getPort();
+		this.sendBuffer = new byte[ 4 + sendCtx.getBlockSize() ];
+		this.sendDatagram = new DatagramPacket( sendBuffer, sendBuffer.length, groupAddress, groupPort );
+	}
+
+	/**
+	 * Adds a client to the group and sends it the OACK naming the group. A client
+	 * repeating its request just gets the OACK again. The client is expected to
+	 * be registered in the session table already.
+	 *
+	 * @return false if the session already finished, the client needs a new one
+	 */
+	public synchronized boolean join( InetAddress address, int port, TFTPOptions options ) throws IOException {
+		if( closed ) {
+			return false;
+		}
+
+		Member member = findMember( address, port );
+		if( member == null ) {
+			member = new Member( address, port, options );
+			members.addLast( member );
+			System.out.println( "Client " + member.describe() + " joined multicast group " + groupAddress.getHostAddress() );
+		}
+
+		if( master == null ) {
+			promote( member );
+		}
+		else {
+			sendOack( member );
+		}
+		return true;
+	}
+
+	@Override
+	public void run() {
+		byte[] buffer = new byte[ TFTPOptions.MAX_REQUEST_SIZE ];
+		DatagramPacket datagram = new DatagramPacket( buffer, buffer.length );
+
+		try {
+			while( !closed && !Thread.currentThread().isInterrupted() ) {
+				try {
+					long remaining;
+					synchronized( this ) {
+						remaining = TimeUnit.NANOSECONDS.toMillis( rtt.getDeadline() - System.nanoTime() );
+					}
+					if( remaining <= 0 ) {
+						throw new SocketTimeoutException();
+					}
+
+					socket.setSoTimeout( (int)remaining );
+					datagram.setLength( buffer.length );
+					socket.receiveDatagram( datagram );
+				}
+				catch( SocketTimeoutException e ) {
+					onTimeout();
+					continue;
+				}
+
+				onPacket( datagram );
+			}
+		}
+		catch( IOException e ) {
+			if( !closed ) {
+				e.printStackTrace();
+			}
+		}
+		finally {
+			// Late joiners racing the end of the session are turned away by join()
+			synchronized( this ) {
+				closed = true;
+				for( Member member : members ) {
+					sessions.remove( member.address, member.port, this );
+				}
+				members.clear();
+			}
+			socket.close();
+			sendCtx.close();
+			sendCtx.getStats().finish( sendCtx.isComplete() );
+		}
+	}
+
+	private synchronized void onPacket( DatagramPacket datagram ) throws IOException {
+		Member member = findMember( datagram.getAddress(), datagram.getPort() );
+
+		if( member == null ) {
+			socket.send(
+				new TFTPErrorPacket(
+					datagram.getAddress(),
+					datagram.getPort(),
+					TFTPErrorPacket.UNKNOWN_TID,
+					"Unknown transfer ID"
+				)
+			);
+			return;
+		}
+
+		if( datagram.getLength() < 4 ) {
+			return;
+		}
+
+		byte[] buffer = datagram.getData();
+		int opcode = TFTPCodec.getOpcode( buffer );
+
+		if( opcode == TFTPPacket.ACKNOWLEDGEMENT ) {
+			// Only the master ACKs, anything else is from a client that missed its demotion
+			if( member != master ) {
+				return;
+			}
+
+			int blockNumber = TFTPCodec.getBlockNumber( buffer );
+			boolean accepted;
+
+			if( awaitingMaster ) {
+				// A new master ACKs the block before the first one it is missing
+				accepted = sendCtx.restartAfter( blockNumber );
+				awaitingMaster = !accepted;
+			}
+			else {
+				accepted = sendCtx.acknowledge( blockNumber );
+			}
+
+			if( !accepted ) {
+				return;
+			}
+
+			long now = System.nanoTime();
+			rtt.acknowledged( now );
+			lastActivity = now;
+
+			if( sendCtx.isComplete() ) {
+				System.out.println( "Multicast transfer to " + master.describe() + " complete" );
+				leave( master );
+				promoteNext();
+			}
+			else {
+				sendCtx.sendWindow( this );
+				rtt.sent( now );
+			}
+		}
+		else if( opcode == TFTPPacket.ERROR ) {
+			System.out.println( "Client " + member.describe() + " left multicast group " + groupAddress.getHostAddress() + ": " + describeError( datagram ) );
+			leave( member );
+			if( member == master ) {
+				promoteNext();
+			}
+		}
+	}
+
+	private synchronized void onTimeout() throws IOException {
+		long now = System.nanoTime();
+
+		if( !rtt.timedOut( now ) ) {
+			System.out.println( "Multicast master " + master.describe() + " timed out" );
+			leave( master );
+			promoteNext();
+			return;
+		}
+
+		if( awaitingMaster ) {
+			sendOack( master );
+		}
+		else {
+			sendCtx.sendWindow( this );
+		}
+	}
+
+	private void leave( Member member ) {
+		members.remove( member );
+		sessions.remove( member.address, member.port, this );
+	}
+
+	private void promoteNext() throws IOException {
+		Member next = members.peekFirst();
+		if( next == null ) {
+			master = null;
+			closed = true;
+			return;
+		}
+		promote( next );
+	}
+
+	private void promote( Member member ) throws IOException {
+		master = member;
+		awaitingMaster = true;
+		rtt = new RttEstimator( member.options.getTimeout() );
+
+		sendOack( member );
+		rtt.sent( System.nanoTime() );
+	}
+
+	private void sendOack( Member member ) throws IOException {
+		member.options.acknowledgeMulticast( groupAddress, groupPort, member == master );
+		socket.sendDatagram( member.options.newOackDatagram( member.address, member.port ) );
+	}
+
+	private Member findMember( InetAddress address, int port ) {
+		for( Member member : members ) {
+			if( member.port == port && member.address.equals( address ) ) {
+				return member;
+			}
+		}
+		return null;
+	}
+
+	private String describeError( DatagramPacket datagram ) {
+		try {
+			return ((TFTPErrorPacket)TFTPPacket.newTFTPPacket( datagram )).getMessage();
+		}
+		catch( TFTPPacketException | ClassCastException e ) {
+			return "malformed error packet";
+		}
+	}
+
+	public InetAddress getGroupAddress() {
+		return groupAddress;
+	}
+
+	public synchronized int getMemberCount() {
+		return members.size();
+	}
+
+	@Override
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		socket.close();
+	}
+
+	@Override
+	public void sendData( int blockNumber, byte[] data, int length ) throws IOException {
+		TFTPCodec.writeDataHeader( sendBuffer, blockNumber );
+		System.arraycopy( data, 0, sendBuffer, 4, length );
+		sendDatagram.setLength( 4 + length );
+		socket.sendDatagram( sendDatagram );
+	}
+}
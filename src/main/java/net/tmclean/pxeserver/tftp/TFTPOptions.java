@@ -0,0 +1,275 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.net.tftp.TFTPPacket;
+
+/**
+ * Option extension (RFC 2347) values carried in a read request, and the
+ * subset of them the server agreed to in its OACK.
+ */
+public class TFTPOptions {
+
+	public static final int OACK = 6;
+
+	public static final String BLKSIZE    = "blksize";
+	public static final String WINDOWSIZE = "windowsize";
+	public static final String TSIZE      = "tsize";
+	public static final String TIMEOUT    = "timeout";
+	public static final String MULTICAST  = "multicast";
+
+	public static final int DEFAULT_BLOCK_SIZE = TFTPPacket.SEGMENT_SIZE;
+	public static final int MIN_BLOCK_SIZE     = 8;
+	public static final int MAX_BLOCK_SIZE     = 65464;
+
+	public static final int DEFAULT_WINDOW_SIZE = 1;
+	public static final int MAX_WINDOW_SIZE     = 65535;
+
+	public static final int MIN_TIMEOUT = 1;
+	public static final int MAX_TIMEOUT = 255;
+
+	// Requests carrying options must still fit in a single 512 byte segment
+	public static final int MAX_REQUEST_SIZE = TFTPPacket.SEGMENT_SIZE + 4;
+
+	// IPv4 (20) + UDP (8) + TFTP DATA (4) headers
+	private static final int DATA_OVERHEAD = 32;
+	private static final int DEFAULT_MTU   = 1500;
+
+	private static final int maxBlockSize  = resolveMaxBlockSize();
+	private static final int maxWindowSize = Math.max( 1, Math.min( MAX_WINDOW_SIZE, Integer.getInteger( "pxeserver.tftp.maxWindowSize", 64 ) ) );
+
+	// Multicast needs a network that routes the groups, so clients only get it when asked for
+	private static final boolean multicastEnabled = Boolean.getBoolean( "pxeserver.tftp.multicast" );
+
+	public static int getMaxBlockSize() {
+		return maxBlockSize;
+	}
+
+	public static int getMaxWindowSize() {
+		return maxWindowSize;
+	}
+
+	public static boolean isMulticastEnabled() {
+		return multicastEnabled;
+	}
+
+	public static TFTPOptions fromRequest( DatagramPacket datagram ) {
+
+		Map<String, String> requested = new LinkedHashMap<>();
+
+		byte[] data = datagram.getData();
+		int    pos  = datagram.getOffset() + 2;
+		int    end  = datagram.getOffset() + datagram.getLength();
+
+		// Skip past the filename and transfer mode, options follow as name/value pairs
+		int field = 0;
+		String name = null;
+
+		while( pos < end ) {
+			int start = pos;
+			while( pos < end && data[pos] != 0 ) {
+				pos++;
+			}
+
+			if( pos >= end ) {
+				break;
+			}
+
+			if( field >= 2 ) {
+				String str = new String( data, start, pos - start, StandardCharsets.US_ASCII );
+				if( name == null ) {
+					name = str.toLowerCase( Locale.ROOT );
+				}
+				else {
+					requested.put( name, str );
+					name = null;
+				}
+			}
+
+			field++;
+			pos++;
+		}
+
+		return new TFTPOptions( requested );
+	}
+
+	private final Map<String, String> requested;
+	private final Map<String, String> acknowledged = new LinkedHashMap<>();
+
+	private byte[] oackBytes = null;
+
+	private int blockSize  = DEFAULT_BLOCK_SIZE;
+	private int windowSize = DEFAULT_WINDOW_SIZE;
+	private int timeout    = 0;
+
+	public TFTPOptions( Map<String, String> requested ) {
+		this.requested = requested;
+		negotiate();
+	}
+
+	private void negotiate() {
+		Integer reqBlockSize = getRequestedInt( BLKSIZE );
+
+		if( reqBlockSize != null && reqBlockSize >= MIN_BLOCK_SIZE ) {
+			this.blockSize = Math.min( reqBlockSize, maxBlockSize );
+			this.acknowledged.put( BLKSIZE, String.valueOf( this.blockSize ) );
+		}
+
+		Integer reqWindowSize = getRequestedInt( WINDOWSIZE );
+
+		// Multicast (RFC 2090) is lock step, the master client ACKs every block
+		if( reqWindowSize != null && reqWindowSize >= 1 && !isMulticastRequested() ) {
+			this.windowSize = Math.min( reqWindowSize, maxWindowSize );
+			this.acknowledged.put( WINDOWSIZE, String.valueOf( this.windowSize ) );
+		}
+
+		Integer reqTimeout = getRequestedInt( TIMEOUT );
+
+		// Unlike the size options, the server may not counter with a different timeout
+		if( reqTimeout != null && reqTimeout >= MIN_TIMEOUT && reqTimeout <= MAX_TIMEOUT ) {
+			this.timeout = reqTimeout;
+			this.acknowledged.put( TIMEOUT, String.valueOf( this.timeout ) );
+		}
+	}
+
+	public boolean isTransferSizeRequested() {
+		return this.requested.containsKey( TSIZE );
+	}
+
+	public boolean isMulticastRequested() {
+		return multicastEnabled && this.requested.containsKey( MULTICAST );
+	}
+
+	/**
+	 * Tells a client which group the file is sent to, and whether it is the
+	 * master client that ACKs for the group.
+	 */
+	public void acknowledgeMulticast( InetAddress group, int port, boolean master ) {
+		this.acknowledged.put( MULTICAST, group.getHostAddress() + "," + port + "," + (master ? 1 : 0) );
+		this.oackBytes = null;
+	}
+
+	/**
+	 * Answers a tsize option with the real file length, which the option
+	 * parser can't know before the request has been resolved to a file.
+	 */
+	public void acknowledgeTransferSize( long fileSize ) {
+		if( isTransferSizeRequested() ) {
+			this.acknowledged.put( TSIZE, String.valueOf( fileSize ) );
+			this.oackBytes = null;
+		}
+	}
+
+	private Integer getRequestedInt( String name ) {
+		String value = this.requested.get( name );
+		if( value == null ) {
+			return null;
+		}
+
+		try {
+			return Integer.valueOf( value.trim() );
+		}
+		catch( NumberFormatException e ) {
+			return null;
+		}
+	}
+
+	public Map<String, String> getRequested() {
+		return Collections.unmodifiableMap( this.requested );
+	}
+
+	public Map<String, String> getAcknowledged() {
+		return Collections.unmodifiableMap( this.acknowledged );
+	}
+
+	public boolean hasAcknowledgedOptions() {
+		return !this.acknowledged.isEmpty();
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * @return the retransmission timeout in seconds the client asked for, or 0 to adapt it
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	public DatagramPacket newOackDatagram( InetAddress address, int port ) {
+		byte[] data = getOackBytes();
+		return new DatagramPacket( data, data.length, address, port );
+	}
+
+	public byte[] getOackBytes() {
+		if( this.oackBytes != null ) {
+			return this.oackBytes;
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write( 0 );
+		out.write( OACK );
+
+		for( Map.Entry<String, String> option : this.acknowledged.entrySet() ) {
+			byte[] name  = option.getKey().getBytes( StandardCharsets.US_ASCII );
+			byte[] value = option.getValue().getBytes( StandardCharsets.US_ASCII );
+			out.write( name, 0, name.length );
+			out.write( 0 );
+			out.write( value, 0, value.length );
+			out.write( 0 );
+		}
+
+		this.oackBytes = out.toByteArray();
+		return this.oackBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "requested " + this.requested + ", acknowledged " + this.acknowledged;
+	}
+
+	private static int resolveMaxBlockSize() {
+		Integer configured = Integer.getInteger( "pxeserver.tftp.maxBlockSize" );
+		if( configured != null ) {
+			return clampBlockSize( configured );
+		}
+
+		// Without a configured limit, keep DATA packets within the smallest link MTU
+		// so large blocks are never fragmented
+		int mtu = Integer.MAX_VALUE;
+		try {
+			for( NetworkInterface nic : Collections.list( NetworkInterface.getNetworkInterfaces() ) ) {
+				if( nic.isUp() && !nic.isLoopback() && nic.getMTU() > 0 ) {
+					mtu = Math.min( mtu, nic.getMTU() );
+				}
+			}
+		}
+		catch( SocketException e ) {
+			e.printStackTrace();
+		}
+
+		if( mtu == Integer.MAX_VALUE ) {
+			mtu = DEFAULT_MTU;
+		}
+
+		return clampBlockSize( mtu - DATA_OVERHEAD );
+	}
+
+	private static int clampBlockSize( int blockSize ) {
+		return Math.max( MIN_BLOCK_SIZE, Math.min( MAX_BLOCK_SIZE, blockSize ) );
+	}
+}
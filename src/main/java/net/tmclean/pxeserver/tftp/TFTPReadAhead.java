@@ -0,0 +1,239 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Prefetches the blocks of a transfer into a ring of block buffers on a
+ * shared set of reader threads, so answering an ACK doesn't wait on the disk.
+ * The ring holds every block from the last ACKed one onwards, which covers
+ * the window in flight plus the blocks read ahead of it.
+ * <p>
+ * Nothing here allocates once a transfer is running. Each read-ahead is its
+ * own task, linked into the reader queue only when it has gone idle, and a
+ * block is handed over to the session by publishing the read position
+ * rather than under a lock.
+ */
+public class TFTPReadAhead {
+
+	private static final int THREADS = Integer.getInteger( "pxeserver.tftp.readAheadThreads", Runtime.getRuntime().availableProcessors() * 2 );
+
+	// Parked sessions are woken by the reader, the timeout is only a safety net
+	private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos( 100 );
+
+	/**
+	 * Read-aheads waiting for a reader thread, linked through {@link TFTPReadAhead#next}.
+	 */
+	private static final class ReaderQueue {
+		private TFTPReadAhead head = null;
+		private TFTPReadAhead tail = null;
+
+		ReaderQueue( int threads ) {
+			for( int i = 0; i < threads; i++ ) {
+				Thread thread = new Thread( this::work, "tftp-read-ahead-" + i );
+				thread.setDaemon( true );
+				thread.start();
+			}
+		}
+
+		synchronized void offer( TFTPReadAhead task ) {
+			task.next = null;
+			if( tail == null ) {
+				head = task;
+			}
+			else {
+				tail.next = task;
+			}
+			tail = task;
+			notify();
+		}
+
+		private synchronized TFTPReadAhead take() throws InterruptedException {
+			while( head == null ) {
+				wait();
+			}
+			TFTPReadAhead task = head;
+			head = task.next;
+			if( head == null ) {
+				tail = null;
+			}
+			task.next = null;
+			return task;
+		}
+
+		private void work() {
+			try {
+				while( true ) {
+					take().run();
+				}
+			}
+			catch( InterruptedException e ) {
+				// Daemon threads, only ever stopped with the JVM
+			}
+		}
+	}
+
+	private static final ReaderQueue readers = new ReaderQueue( THREADS );
+
+	// The read position packs a generation above the last block read, so a read
+	// finishing after a reset fails to publish instead of landing in the new ring
+	private static final int  GENERATION_SHIFT = 48;
+	private static final long BLOCK_MASK       = (1L << GENERATION_SHIFT) - 1;
+
+	private final TFTPSendContext sendCtx;
+	private final long finalBlock;
+	private final byte[][] slots;
+
+	private final AtomicBoolean running = new AtomicBoolean( false );
+	private final AtomicLong position = new AtomicLong( 0 );
+
+	// Guarded by the reader queue
+	private TFTPReadAhead next = null;
+
+	private volatile long acked = 0;
+	private volatile boolean cancelled = false;
+	private volatile Thread waiter = null;
+	private volatile Runnable listener = null;
+
+	// The position the read failed at, a reset moves past it
+	private volatile long failedAt = -1;
+	private volatile IOException failure = null;
+
+	public TFTPReadAhead( TFTPSendContext sendCtx, long finalBlock, int depth ) {
+		this.sendCtx = sendCtx;
+		this.finalBlock = finalBlock;
+		this.slots = new byte[ depth ][ sendCtx.getBlockSize() ];
+	}
+
+	/**
+	 * Frees the buffers of every block up to the given one and reads further ahead.
+	 */
+	public void release( long block ) {
+		if( block > this.acked ) {
+			this.acked = block;
+			schedule();
+		}
+	}
+
+	/**
+	 * Starts reading after the given block, discarding whatever was read ahead.
+	 */
+	public void reset( long block ) {
+		long current = position.get();
+		this.acked = block;
+		position.set( (((current >>> GENERATION_SHIFT) + 1) << GENERATION_SHIFT) | block );
+		schedule();
+	}
+
+	/**
+	 * Sets what to call from the reader thread whenever a block is read or the
+	 * read fails, for an engine that can't park its thread in {@link #await(long)}.
+	 */
+	public void setListener( Runnable listener ) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Stops reading for a transfer that has ended.
+	 */
+	public void cancel() {
+		this.cancelled = true;
+	}
+
+	/**
+	 * @return the buffer holding the block, or null if it hasn't been read yet
+	 */
+	public byte[] poll( long block ) throws IOException {
+		long current = position.get();
+		if( block <= (current & BLOCK_MASK) ) {
+			return slots[ (int)(block % slots.length) ];
+		}
+
+		if( failedAt == current ) {
+			throw this.failure;
+		}
+
+		schedule();
+		return null;
+	}
+
+	/**
+	 * @return the buffer holding the block, waiting for it to be read if the disk is behind
+	 */
+	public byte[] await( long block ) throws IOException {
+		byte[] data = poll( block );
+		if( data != null ) {
+			return data;
+		}
+
+		this.waiter = Thread.currentThread();
+		try {
+			while( (data = poll( block )) == null ) {
+				LockSupport.parkNanos( this, PARK_NANOS );
+				if( Thread.interrupted() ) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException( "Interrupted waiting for block " + block );
+				}
+			}
+			return data;
+		}
+		finally {
+			this.waiter = null;
+		}
+	}
+
+	private void schedule() {
+		if( hasWork( position.get() ) && running.compareAndSet( false, true ) ) {
+			readers.offer( this );
+		}
+	}
+
+	private boolean hasWork( long current ) {
+		long next = (current & BLOCK_MASK) + 1;
+		return next <= finalBlock && next <= this.acked + slots.length && failedAt != current && !cancelled;
+	}
+
+	private void run() {
+		do {
+			long current;
+			while( hasWork( current = position.get() ) ) {
+				long block = (current & BLOCK_MASK) + 1;
+
+				try {
+					sendCtx.readBlock( block, slots[ (int)(block % slots.length) ] );
+				}
+				catch( IOException | RuntimeException e ) {
+					this.failure = e instanceof IOException ? (IOException)e : new IOException( e );
+					this.failedAt = current;
+					wake();
+					break;
+				}
+
+				// Fails if the transfer was reset while reading, the block is read again
+				if( position.compareAndSet( current, current + 1 ) ) {
+					wake();
+				}
+			}
+
+			running.set( false );
+
+			// An ACK may have arrived between the last check and clearing the flag
+		} while( hasWork( position.get() ) && running.compareAndSet( false, true ) );
+	}
+
+	private void wake() {
+		Thread thread = this.waiter;
+		if( thread != null ) {
+			LockSupport.unpark( thread );
+		}
+
+		Runnable listener = this.listener;
+		if( listener != null ) {
+			listener.run();
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package net.tmclean.pxeserver.tftp;
+
+import net.tmclean.pxeserver.image.Image;
+
+public class TFTPResolvedFile {
+
+	private final Image image;
+	private final String filePath;
+	private final long fileId;
+	private final long length;
+
+	public TFTPResolvedFile( Image image, String filePath, long fileId, long length ) {
+		this.image = image;
+		this.filePath = filePath;
+		this.fileId = fileId;
+		this.length = length;
+	}
+
+	public Image getImage() {
+		return image;
+	}
+
+	public String getFilePath() {
+		return filePath;
+	}
+
+	public long getFileId() {
+		return fileId;
+	}
+
+	public long getLength() {
+		return length;
+	}
+}
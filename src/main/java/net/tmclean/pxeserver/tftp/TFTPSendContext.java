@@ -3,60 +3,244 @@ package net.tmclean.pxeserver.tftp;
 import java.io.IOException;
 import java.net.InetAddress;
 
-import org.apache.commons.net.tftp.TFTP;
-import org.apache.commons.net.tftp.TFTPDataPacket;
-import org.apache.commons.net.tftp.TFTPPacket;
-
 import net.tmclean.pxeserver.image.Image;
 import net.tmclean.pxeserver.image.aggregate.ImageContentDirectory;
 
 public class TFTPSendContext {
 	
+	// Blocks read ahead of the window in flight, 0 reads each block as it is sent
+	static final int READ_AHEAD = Integer.getInteger( "pxeserver.tftp.readAhead", 8 );
+	
 	private final InetAddress address;
 	private final int port;
 	
 	private final ImageContentDirectory contentDirectory;
 	private final Image image;
 	private final String filePath;
+	private final long fileId;
+	private final long fileLength;
+	private final int blockSize;
+	private final int windowSize;
+	private byte[] data;
+	private final TFTPReadAhead readAhead;
+	private boolean readAheadStarted = false;
+	private final TFTPTransferStats stats;
 
-	private int block = 0;
-	private int sent = 0;
+	// Block numbers are tracked unwrapped, only the wire format is 16 bit
+	private long acked = 0;
+	private long sent = 0;
+	private long nextBlock = 1;
+	private final long finalBlock;
+	
+	public TFTPSendContext( ImageContentDirectory contentDirectory, InetAddress address, int port, Image image, String filePath, long fileId, long fileLength, int blockSize, int windowSize ) {
+		this( contentDirectory, address, port, image, filePath, fileId, fileLength, blockSize, windowSize, READ_AHEAD );
+	}
 	
-	public TFTPSendContext( ImageContentDirectory contentDirectory, InetAddress address, int port, Image image, String filePath ) {
+	public TFTPSendContext( ImageContentDirectory contentDirectory, InetAddress address, int port, Image image, String filePath, long fileId, long fileLength, int blockSize, int windowSize, int readAhead ) {
 		this.contentDirectory = contentDirectory;
 		this.address = address;
 		this.port = port;
 		this.image = image;
 		this.filePath = filePath;
+		this.fileId = fileId;
+		this.fileLength = fileLength;
+		this.blockSize = blockSize;
+		this.windowSize = windowSize;
+		
+		// A transfer only ends with a block shorter than the block size, so a file
+		// that is an exact multiple of it still owes the client an empty block
+		this.finalBlock = fileLength / blockSize + 1;
+		
+		this.stats = new TFTPTransferStats( address.getHostAddress() + ":" + port, image.getName(), filePath, fileLength, blockSize, windowSize );
+		
+		// Reading only starts with the first window, a session that is turned away
+		// or a client that only asked for the size never touches the disk
+		if( readAhead > 0 ) {
+			this.data = null;
+			this.readAhead = new TFTPReadAhead( this, finalBlock, windowSize + readAhead );
+		}
+		else {
+			this.data = new byte[ blockSize ];
+			this.readAhead = null;
+		}
+	}
+	
+	public long getFileLength() {
+		return fileLength;
+	}
+	
+	public int getBlockSize() {
+		return blockSize;
+	}
+	
+	public int getWindowSize() {
+		return windowSize;
+	}
+	
+	public TFTPTransferStats getStats() {
+		return stats;
+	}
+	
+	public void awaitOptionAck() {
+		// An OACK stands in for block 0, so the client's ACK 0 has to be accepted
+		this.acked = -1;
+		this.sent = 0;
+	}
+	
+	public boolean isAwaitingOptionAck() {
+		return acked < 0;
+	}
+	
+	public boolean isComplete() {
+		return acked >= finalBlock;
+	}
+	
+	public boolean acknowledge( int blockNumber ) {
+		
+		long ackBlock = acked + 1 + ((blockNumber - (acked + 1)) & 0xffff);
+		
+		// Duplicate or stale ACKs fall outside the window and are dropped, answering
+		// them would double every following block
+		if( ackBlock > sent ) {
+			return false;
+		}
+		
+		this.acked = ackBlock;
+		if( readAhead != null ) {
+			readAhead.release( ackBlock );
+		}
+		return true;
+	}
+	
+	/**
+	 * Restarts the transfer after the given block, for a multicast client taking
+	 * over as master. Its block number can't be unwrapped against a transfer it
+	 * wasn't ACKing, so this is only meant for files that fit in 65535 blocks.
+	 */
+	public boolean restartAfter( int blockNumber ) {
+		
+		long block = blockNumber;
+		if( block > finalBlock ) {
+			return false;
+		}
+		
+		this.acked = block;
+		this.sent = block;
+		if( readAhead != null ) {
+			readAhead.reset( block );
+			readAheadStarted = true;
+		}
+		return true;
+	}
+	
+	/**
+	 * Sets what to call from a reader thread when a block has been read ahead.
+	 */
+	public void setReadAheadListener( Runnable listener ) {
+		if( readAhead != null ) {
+			readAhead.setListener( listener );
+		}
+	}
+	
+	/**
+	 * Stops reading ahead for a transfer that has ended, successfully or not.
+	 */
+	public void close() {
+		if( readAhead != null ) {
+			readAhead.cancel();
+		}
+	}
+	
+	public InetAddress getAddress() {
+		return address;
 	}
 	
-	public boolean hasMore() throws IOException {
+	public int getPort() {
+		return port;
+	}
+	
+	/**
+	 * @return false if the window stopped at a block that hasn't been read ahead yet
+	 */
+	public boolean sendWindow( TFTPTransport transport ) throws IOException {
+		rewindWindow();
+		return resumeWindow( transport );
+	}
+	
+	/**
+	 * Starts the next window directly after the last acknowledged block, without sending it.
+	 */
+	public void rewindWindow() {
 		
-		long fileBytes = this.contentDirectory.getImageFileSize( this.image, this.filePath );
+		if( readAhead != null && !readAheadStarted ) {
+			readAhead.reset( acked );
+			readAheadStarted = true;
+		}
 		
-		long remaining = fileBytes - sent;
+		// An ACK short of the end of the window means the client lost a block,
+		// so every window restarts directly after the last acknowledged block
+		this.nextBlock = acked + 1;
+	}
+	
+	/**
+	 * Sends what is left of the current window.
+	 * 
+	 * @return false if the window stopped at a block that hasn't been read ahead yet
+	 */
+	public boolean resumeWindow( TFTPTransport transport ) throws IOException {
 		
-		boolean more = remaining > 0;
+		long limit = Math.min( acked + windowSize, finalBlock );
 		
-		if( more ) {
-			System.out.println( "Send context has " + remaining + " more bytes to send" );
+		for( ; nextBlock <= limit; nextBlock++ ) {
+			if( !sendBlock( transport, nextBlock, nextBlock <= sent ) ) {
+				return false;
+			}
+			this.sent = Math.max( sent, nextBlock );
+		}
+		return true;
+	}
+	
+	private boolean sendBlock( TFTPTransport transport, long block, boolean retransmit ) throws IOException {
+		
+		byte[] blockData;
+		if( readAhead != null ) {
+			blockData = transport.awaitsReadAhead() ? readAhead.await( block ) : readAhead.poll( block );
+			
+			// The disk is behind and the engine can't wait for it
+			if( blockData == null ) {
+				return false;
+			}
 		}
 		else {
-			System.out.println( "No more data to send in context" );
+			if( data == null ) {
+				data = new byte[ blockSize ];
+			}
+			blockData = data;
+			readBlock( block, blockData );
 		}
 		
-		return more;
+		int length = getBlockLength( block );
+		transport.sendData( (int)(block & 0xffff), blockData, length );
+		stats.blockSent( length, retransmit );
+		return true;
 	}
 	
-	public void sendNextBlock( TFTP tftp ) throws IOException {
-
-		byte[] data = new byte[ TFTPPacket.SEGMENT_SIZE ];		
-		int count = this.contentDirectory.readImageFile( this.image, this.filePath, data, sent, data.length );
+	void readBlock( long block, byte[] buffer ) throws IOException {
 
-		sent += count;
-		++block;
+		long offset = (block - 1) * blockSize;
+		int count = getBlockLength( block );
 		
-		TFTPDataPacket dataResp = new TFTPDataPacket( address, port, block, data, 0, count );
-		tftp.send( dataResp );
+		if( count > 0 ) {
+			int read = this.contentDirectory.readImageFileById( this.image, this.fileId, buffer, offset, count );
+			
+			// A short block would end the transfer early on the client
+			if( read < count ) {
+				throw new IOException( "Short read of " + filePath + " in image " + image.getName() + " at offset " + offset );
+			}
+		}
+	}
+	
+	private int getBlockLength( long block ) {
+		return (int)Math.max( 0, Math.min( blockSize, fileLength - (block - 1) * blockSize ) );
 	}
 }
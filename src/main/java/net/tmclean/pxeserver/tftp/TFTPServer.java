@@ -1,43 +1,64 @@
 package net.tmclean.pxeserver.tftp;
 
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.commons.net.tftp.TFTP;
-import org.apache.commons.net.tftp.TFTPAckPacket;
 import org.apache.commons.net.tftp.TFTPErrorPacket;
 import org.apache.commons.net.tftp.TFTPPacket;
 import org.apache.commons.net.tftp.TFTPPacketException;
 import org.apache.commons.net.tftp.TFTPReadRequestPacket;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
-import net.tmclean.pxeserver.image.Image;
-import net.tmclean.pxeserver.image.ImageRepository;
 import net.tmclean.pxeserver.image.aggregate.ImageContentDirectory;
 import net.tmclean.pxeserver.util.DaemonService;
 
 @Service
+@ConditionalOnProperty( name = "pxeserver.tftp.engine", havingValue = "commons-net", matchIfMissing = true )
 public class TFTPServer extends DaemonService {
 
+	private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos( 1 );
+
 	private static String buildSessionStr( TFTPPacket packet ) {
 		return packet.getAddress().getHostAddress() + ":" + packet.getPort();
 	}
 
-	private final ImageRepository imageRepository;
 	private final ImageContentDirectory contentDirectory;
+	private final TFTPFileResolver fileResolver;
+	private final TFTPMetrics metrics;
+	
+	private final int port = Integer.getInteger( "pxeserver.tftp.port", TFTP.DEFAULT_PORT );
+	private final TFTPSocket tftp = new TFTPSocket();
+	private final TFTPSessionTable<TFTPSessionTable.Session> sessions = new TFTPSessionTable<>();
 	
-	private final TFTP tftp = new TFTP();
-	private final Map<String, TFTPSendContext> sendContextMap = new ConcurrentHashMap<>();
+	// One multicast session per file and block size, clients asking for the same file share it
+	private final Map<String, TFTPMulticastSession> multicastSessions = new ConcurrentHashMap<>();
+	private final int multicastPort = Integer.getInteger( "pxeserver.tftp.multicastPort", 1758 );
+	private final TFTPMulticastAddressPool multicastAddresses;
 	
-	public TFTPServer( ImageRepository imageRepository, ImageContentDirectory contentDirectory ) {
-		this.imageRepository = imageRepository;
+	private final ExecutorService workers = newWorkers();
+	
+	public TFTPServer( ImageContentDirectory contentDirectory, TFTPFileResolver fileResolver, TFTPMetrics metrics ) throws IOException {
 		this.contentDirectory = contentDirectory;
+		this.fileResolver = fileResolver;
+		this.metrics = metrics;
+		this.multicastAddresses = TFTPOptions.isMulticastEnabled() ? new TFTPMulticastAddressPool() : null;
 	}
 	
 	public Void call() throws IOException, TFTPPacketException {
 		try {
-			tftp.open( TFTP.DEFAULT_PORT );
+			tftp.open( port );
 			tftp.setDefaultTimeout( 0 );
 			tftp.setSoTimeout( TFTP.DEFAULT_TIMEOUT );
 
@@ -45,23 +66,46 @@ public class TFTPServer extends DaemonService {
 		}
 		finally {
 			tftp.close();
+			workers.shutdownNow();
 		}
 		
 		return null;
 	}
 	
 	private void eventLoop() throws IOException, TFTPPacketException {
-		while( true ) {
+		byte[] buffer = new byte[ TFTPOptions.MAX_REQUEST_SIZE ];
+		DatagramPacket datagram = new DatagramPacket( buffer, buffer.length );
+		
+		long lastSweep = System.nanoTime();
+		
+		while( !Thread.currentThread().isInterrupted() ) {
+			long now = System.nanoTime();
+			if( now - lastSweep >= SWEEP_INTERVAL ) {
+				sessions.expireIdle( now );
+				lastSweep = now;
+			}
+			
 			TFTPPacket packet = null;
 			try {
-				packet = tftp.receive();
+				datagram.setLength( buffer.length );
+				tftp.receiveDatagram( datagram );
+				
+				packet = TFTPPacket.newTFTPPacket( datagram );
 				System.out.println( "Got packet of type " + packet.getClass() );
 				
+				// Only requests arrive here, each transfer continues on its own port
 				if( isPacketOfType( packet, TFTPReadRequestPacket.class ) ) {
-					processReadRequest( (TFTPReadRequestPacket)packet );
+					processReadRequest( (TFTPReadRequestPacket)packet, TFTPOptions.fromRequest( datagram ) );
 				}
-				else if( isPacketOfType( packet, TFTPAckPacket.class ) ) {
-					processAckPacket( (TFTPAckPacket)packet );
+				else if( !isPacketOfType( packet, TFTPErrorPacket.class ) ) {
+					tftp.send( 
+						new TFTPErrorPacket( 
+							packet.getAddress(), 
+							packet.getPort(), 
+							TFTPErrorPacket.ILLEGAL_OPERATION, 
+							"Only read requests are supported" 
+						) 
+					);
 				}
 			}
 			catch( SocketTimeoutException e ) {
@@ -86,41 +130,59 @@ public class TFTPServer extends DaemonService {
 		}
 	}
 	
+	private static ExecutorService newWorkers() {
+		
+		// With -Dpxeserver.tftp.sessionThreads=virtual every session gets its own virtual thread,
+		// which parks on the blocking receive instead of holding a platform thread. The
+		// build targets Java 8, so the JDK 21 executor is looked up at runtime.
+		if( "virtual".equals( System.getProperty( "pxeserver.tftp.sessionThreads" ) ) ) {
+			try {
+				return (ExecutorService)Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+			}
+			catch( ReflectiveOperationException e ) {
+				System.out.println( "Virtual threads need JDK 21 or later, falling back to a thread pool" );
+			}
+		}
+		
+		// Sessions block on their own socket between ACKs rather than burning CPU,
+		// so the pool is a multiple of the core count
+		int workerCount = Integer.getInteger( "pxeserver.tftp.workers", Runtime.getRuntime().availableProcessors() * 16 );
+		return new ThreadPoolExecutor( 
+			workerCount, 
+			workerCount, 
+			60L, TimeUnit.SECONDS, 
+			new ArrayBlockingQueue<>( workerCount ) 
+		);
+	}
+	
 	private boolean isPacketOfType( TFTPPacket packet, Class<? extends TFTPPacket> clazz ) {
 		return packet.getClass().isAssignableFrom( clazz );
 	}
 	
-	private void processReadRequest( TFTPReadRequestPacket readReq ) throws IOException {
+	private void processReadRequest( TFTPReadRequestPacket readReq, TFTPOptions options ) throws IOException {
 
 		String sessionStr = buildSessionStr( readReq );
 		
 		String modeStr = TFTP.getModeName( readReq.getMode() );
 		System.out.println( "Got read request for " + readReq.getFilename() + " with mode " + modeStr  );
 		
-		String reqFilename = readReq.getFilename();
-		reqFilename = reqFilename.replace( "//", "/" );
-
-		String imageName = reqFilename.substring( 0, reqFilename.indexOf( '/' ) );
-		String filePath  = reqFilename.substring( reqFilename.indexOf( "/" )+1 );
-		
-		if( "".equals( imageName ) ) {
-			imageName = "/";
+		// A repeated request means the client has not heard from the session yet,
+		// which retransmits on its own
+		if( sessions.contains( readReq.getAddress(), readReq.getPort() ) ) {
+			System.out.println( "Ignoring duplicate read request from " + sessionStr );
+			return;
 		}
-
-		Image image = this.imageRepository.getImage( imageName );
 		
-		if( image == null || !contentDirectory.imageFilePathExists( image, filePath ) ) {
-			imageName = filePath.substring( 0, filePath.indexOf( '/' ) );
-			filePath  = filePath.substring( filePath.indexOf( "/" )+1 );
-			
-			image = imageRepository.getImage( imageName );
+		TFTPResolvedFile file;
+		try {
+			file = this.fileResolver.resolve( readReq.getFilename() );
+		}
+		catch( TFTPImageLoadingException e ) {
+			sendError( readReq, TFTPErrorPacket.UNDEFINED, e.getMessage() );
+			return;
 		}
-
-		System.out.println( "Resolved image name "  + imageName + " and file path " + filePath );		
 		
-		if( !this.contentDirectory.imageFilePathExists( image, filePath ) ) {
-			System.out.println( "File path " + filePath + " does not exist" );
-			
+		if( file == null ) {
 			tftp.send( 
 				new TFTPErrorPacket( 
 					readReq.getAddress(), 
@@ -133,34 +195,176 @@ public class TFTPServer extends DaemonService {
 			return;
 		}
 		
+		long fileLength = file.getLength();
+		options.acknowledgeTransferSize( fileLength );
+
+		if( options.isMulticastRequested() && joinMulticastSession( readReq, file, fileLength, options ) ) {
+			return;
+		}
+
 		TFTPSendContext sendCtx = new TFTPSendContext( 
 			this.contentDirectory,
 			readReq.getAddress(), 
 			readReq.getPort(),
-			image,
-			filePath
+			file.getImage(),
+			file.getFilePath(),
+			file.getFileId(),
+			fileLength,
+			options.getBlockSize(),
+			options.getWindowSize()
 		);
 		
-		sendContextMap.put( sessionStr, sendCtx );
-		
-		if( sendCtx.hasMore() ) {
-			sendCtx.sendNextBlock( tftp );
+		if( options.hasAcknowledgedOptions() ) {
+			System.out.println( "Acknowledging options " + options.getAcknowledged() );
+		}
+
+		TFTPSocket sessionSocket = new TFTPSocket();
+		TFTPSession session = null;
+		try {
+			sessionSocket.open();
+			
+			session = 
+				new TFTPSession( 
+					sessionSocket, 
+					sendCtx, 
+					options, 
+					readReq.getAddress(), 
+					readReq.getPort() 
+				);
+			
+			if( sessions.register( readReq.getAddress(), readReq.getPort(), session ) != TFTPSessionTable.Admission.ADDED ) {
+				sessionSocket.close();
+				sendError( readReq, TFTPErrorPacket.UNDEFINED, "Too many sessions" );
+				return;
+			}
+			
+			metrics.started( sendCtx.getStats(), options );
+			
+			TFTPSession started = session;
+			workers.execute( () -> {
+				try {
+					started.run();
+				}
+				finally {
+					sessions.remove( started.getAddress(), started.getPort(), started );
+				}
+			});
+		}
+		catch( RejectedExecutionException e ) {
+			sessionSocket.close();
+			sessions.remove( readReq.getAddress(), readReq.getPort(), session );
+			sendCtx.getStats().finish( false );
+			sendError( readReq, TFTPErrorPacket.UNDEFINED, "Server busy" );
+		}
+		catch( IOException | RuntimeException e ) {
+			sessionSocket.close();
+			if( session != null ) {
+				sessions.remove( readReq.getAddress(), readReq.getPort(), session );
+			}
+			throw e;
 		}
 	}
 	
-	private void processAckPacket( TFTPAckPacket ack ) throws IOException {
+	/**
+	 * @return false if the file can't go out multicast and should be sent unicast
+	 */
+	private boolean joinMulticastSession( TFTPReadRequestPacket readReq, TFTPResolvedFile file, long fileLength, TFTPOptions options ) throws IOException {
 		
-		String sessionStr = buildSessionStr( ack );
-
-		if( sendContextMap.containsKey( sessionStr ) ) {
-			TFTPSendContext sendCtx = sendContextMap.get( sessionStr );
-			if( sendCtx.hasMore() ) {
-				sendCtx.sendNextBlock( tftp );
+		if( !TFTPMulticastSession.canSend( fileLength, options.getBlockSize() ) ) {
+			System.out.println( readReq.getFilename() + " has too many blocks for multicast, sending it unicast" );
+			return false;
+		}
+		
+		String key = file.getFileId() + ":" + options.getBlockSize();
+		
+		TFTPMulticastSession existing = multicastSessions.get( key );
+		if( existing != null ) {
+			if( sessions.register( readReq.getAddress(), readReq.getPort(), existing ) != TFTPSessionTable.Admission.ADDED ) {
+				sendError( readReq, TFTPErrorPacket.UNDEFINED, "Too many sessions" );
+				return true;
+			}
+			if( existing.join( readReq.getAddress(), readReq.getPort(), options ) ) {
+				return true;
 			}
+			sessions.remove( readReq.getAddress(), readReq.getPort(), existing );
+		}
+		
+		InetAddress groupAddress = multicastAddresses.acquire();
+		if( groupAddress == null ) {
+			System.out.println( "No multicast group free for " + readReq.getFilename() + ", sending it unicast" );
+			return false;
+		}
+		
+		TFTPSendContext sendCtx = new TFTPSendContext( 
+			this.contentDirectory,
+			groupAddress, 
+			multicastPort,
+			file.getImage(),
+			file.getFilePath(),
+			file.getFileId(),
+			fileLength,
+			options.getBlockSize(),
+			1
+		);
 		
-			if( !sendCtx.hasMore() ) {
-				sendContextMap.remove( sessionStr );
+		TFTPSocket sessionSocket = new TFTPSocket();
+		TFTPMulticastSession session = null;
+		try {
+			sessionSocket.open();
+			
+			session = new TFTPMulticastSession( sessionSocket, sendCtx, sessions );
+			
+			if( sessions.register( readReq.getAddress(), readReq.getPort(), session ) != TFTPSessionTable.Admission.ADDED ) {
+				sessionSocket.close();
+				multicastAddresses.release( groupAddress );
+				sendError( readReq, TFTPErrorPacket.UNDEFINED, "Too many sessions" );
+				return true;
 			}
+			
+			session.join( readReq.getAddress(), readReq.getPort(), options );
+			multicastSessions.put( key, session );
+			metrics.started( sendCtx.getStats(), options );
+			
+			TFTPMulticastSession started = session;
+			workers.execute( () -> {
+				try {
+					started.run();
+				}
+				finally {
+					multicastSessions.remove( key, started );
+					multicastAddresses.release( groupAddress );
+				}
+			});
+		}
+		catch( RejectedExecutionException e ) {
+			session.close();
+			sessions.remove( readReq.getAddress(), readReq.getPort(), session );
+			sendCtx.getStats().finish( false );
+			multicastSessions.remove( key, session );
+			multicastAddresses.release( groupAddress );
+			sendError( readReq, TFTPErrorPacket.UNDEFINED, "Server busy" );
+		}
+		catch( IOException | RuntimeException e ) {
+			sessionSocket.close();
+			if( session != null ) {
+				sessions.remove( readReq.getAddress(), readReq.getPort(), session );
+				multicastSessions.remove( key, session );
+			}
+			multicastAddresses.release( groupAddress );
+			throw e;
 		}
+		
+		return true;
+	}
+	
+	private void sendError( TFTPPacket packet, int error, String message ) throws IOException {
+		tftp.send( 
+			new TFTPErrorPacket( 
+				packet.getAddress(), 
+				packet.getPort(), 
+				error, 
+				message 
+			) 
+		);
 	}
 }
@@ -0,0 +1,174 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.net.tftp.TFTPErrorPacket;
+import org.apache.commons.net.tftp.TFTPPacket;
+import org.apache.commons.net.tftp.TFTPPacketException;
+
+/**
+ * A single read transfer served from its own socket, so the ephemeral port
+ * doubles as the server's transfer ID (RFC 1350) and the session only ever
+ * sees packets for itself.
+ */
+public class TFTPSession implements Runnable, TFTPTransport, TFTPSessionTable.Session {
+
+	private final TFTPSocket socket;
+	private final TFTPSendContext sendCtx;
+	private final TFTPOptions options;
+	private final InetAddress address;
+	private final int port;
+	private final RttEstimator rtt;
+
+	private final byte[] sendBuffer;
+	private final DatagramPacket sendDatagram;
+
+	private volatile long lastActivity = System.nanoTime();
+	private volatile boolean closed = false;
+
+	public TFTPSession( TFTPSocket socket, TFTPSendContext sendCtx, TFTPOptions options, InetAddress address, int port ) {
+		this.socket = socket;
+		this.sendCtx = sendCtx;
+		this.options = options;
+		this.rtt = new RttEstimator( options.getTimeout() );
+		this.address = address;
+		this.port = port;
+		this.sendBuffer = new byte[ 4 + sendCtx.getBlockSize() ];
+		this.sendDatagram = new DatagramPacket( sendBuffer, sendBuffer.length, address, port );
+	}
+
+	@Override
+	public void run() {
+		byte[] buffer = new byte[ TFTPOptions.MAX_REQUEST_SIZE ];
+		DatagramPacket datagram = new DatagramPacket( buffer, buffer.length );
+
+		try {
+			if( options.hasAcknowledgedOptions() ) {
+				// The client answers the OACK with an ACK of block 0, which starts the data transfer
+				sendCtx.awaitOptionAck();
+			}
+			send();
+			rtt.sent( System.nanoTime() );
+
+			while( !sendCtx.isComplete() && !closed && !Thread.currentThread().isInterrupted() ) {
+				try {
+					// Wait out whatever is left of the current timeout, not a fresh one
+					// for every stray packet
+					long remaining = TimeUnit.NANOSECONDS.toMillis( rtt.getDeadline() - System.nanoTime() );
+					if( remaining <= 0 ) {
+						throw new SocketTimeoutException();
+					}
+					
+					socket.setSoTimeout( (int)remaining );
+					datagram.setLength( buffer.length );
+					socket.receiveDatagram( datagram );
+				}
+				catch( SocketTimeoutException e ) {
+					if( !rtt.timedOut( System.nanoTime() ) ) {
+						System.out.println( "Transfer to " + address.getHostAddress() + ":" + port + " timed out" );
+						return;
+					}
+
+					send();
+					continue;
+				}
+
+				if( !address.equals( datagram.getAddress() ) || port != datagram.getPort() ) {
+					socket.send( 
+						new TFTPErrorPacket( 
+							datagram.getAddress(), 
+							datagram.getPort(), 
+							TFTPErrorPacket.UNKNOWN_TID, 
+							"Unknown transfer ID" 
+						) 
+					);
+					continue;
+				}
+
+				if( datagram.getLength() < 4 ) {
+					continue;
+				}
+
+				// ACKs are decoded in place, a commons-net packet per ACK is garbage on every window
+				int opcode = TFTPCodec.getOpcode( buffer );
+
+				if( opcode == TFTPPacket.ACKNOWLEDGEMENT ) {
+					if( sendCtx.acknowledge( TFTPCodec.getBlockNumber( buffer ) ) ) {
+						long now = System.nanoTime();
+						rtt.acknowledged( now );
+						lastActivity = now;
+						
+						if( !sendCtx.isComplete() ) {
+							sendCtx.sendWindow( this );
+							rtt.sent( now );
+						}
+					}
+				}
+				else if( opcode == TFTPPacket.ERROR ) {
+					System.out.println( "Transfer to " + address.getHostAddress() + ":" + port + " aborted by client: " + describeError( datagram ) );
+					return;
+				}
+			}
+		}
+		catch( IOException e ) {
+			// Closing an idle session from the session table interrupts the receive
+			if( !closed ) {
+				e.printStackTrace();
+			}
+		}
+		finally {
+			socket.close();
+			sendCtx.close();
+			sendCtx.getStats().finish( sendCtx.isComplete() );
+		}
+	}
+
+	private String describeError( DatagramPacket datagram ) {
+		try {
+			return ((TFTPErrorPacket)TFTPPacket.newTFTPPacket( datagram )).getMessage();
+		}
+		catch( TFTPPacketException | ClassCastException e ) {
+			return "malformed error packet";
+		}
+	}
+
+	public InetAddress getAddress() {
+		return address;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	@Override
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		socket.close();
+	}
+
+	private void send() throws IOException {
+		if( sendCtx.isAwaitingOptionAck() ) {
+			socket.sendDatagram( options.newOackDatagram( address, port ) );
+		}
+		else {
+			sendCtx.sendWindow( this );
+		}
+	}
+
+	@Override
+	public void sendData( int blockNumber, byte[] data, int length ) throws IOException {
+		TFTPCodec.writeDataHeader( sendBuffer, blockNumber );
+		System.arraycopy( data, 0, sendBuffer, 4, length );
+		sendDatagram.setLength( 4 + length );
+		socket.sendDatagram( sendDatagram );
+	}
+}
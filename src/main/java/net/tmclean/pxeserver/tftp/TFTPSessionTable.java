@@ -0,0 +1,230 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Live transfers keyed by client address and port, packed into a long. The
+ * table never holds more than its configured number of sessions, so it is a
+ * fixed open addressing array that never resizes, and sessions that go quiet
+ * are swept out and closed after the idle timeout.
+ */
+public class TFTPSessionTable<S extends TFTPSessionTable.Session> {
+
+	public interface Session {
+		long getLastActivity();
+		void close();
+	}
+
+	public enum Admission {
+		ADDED,
+		DUPLICATE,
+		FULL;
+	}
+
+	private static final class Slot<S> {
+		final long key;
+		final InetAddress address;
+		final int port;
+		final S session;
+
+		Slot( long key, InetAddress address, int port, S session ) {
+			this.key = key;
+			this.address = address;
+			this.port = port;
+			this.session = session;
+		}
+
+		boolean matches( long key, InetAddress address, int port ) {
+			return this.key == key && this.port == port && this.address.equals( address );
+		}
+	}
+
+	public static final int  MAX_SESSIONS = Integer.getInteger( "pxeserver.tftp.maxSessions", 1024 );
+	public static final long IDLE_TIMEOUT = TimeUnit.MILLISECONDS.toNanos( Long.getLong( "pxeserver.tftp.sessionIdleTimeout", 60000L ) );
+
+	public static long key( InetAddress address, int port ) {
+		// An IPv4 address hashes to itself, so only IPv6 keys can collide and those
+		// are told apart by comparing the stored address
+		long family = address instanceof Inet6Address ? 1L << 48 : 0L;
+		return family | ((address.hashCode() & 0xffffffffL) << 16) | (port & 0xffff);
+	}
+
+	private final int maxSessions;
+	private final long idleTimeout;
+	private final Slot<S>[] slots;
+	private final int mask;
+
+	private int size = 0;
+
+	private final AtomicLong added      = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
+	private final AtomicLong rejected   = new AtomicLong();
+	private final AtomicLong expired    = new AtomicLong();
+
+	public TFTPSessionTable() {
+		this( MAX_SESSIONS, IDLE_TIMEOUT );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	public TFTPSessionTable( int maxSessions, long idleTimeout ) {
+		this.maxSessions = maxSessions;
+		this.idleTimeout = idleTimeout;
+
+		int capacity = Integer.highestOneBit( Math.max( 2, maxSessions ) * 2 - 1 ) << 1;
+		this.slots = (Slot<S>[])new Slot<?>[ capacity ];
+		this.mask = capacity - 1;
+	}
+
+	public synchronized boolean contains( InetAddress address, int port ) {
+		return indexOf( key( address, port ), address, port ) >= 0;
+	}
+
+	public synchronized S get( InetAddress address, int port ) {
+		int i = indexOf( key( address, port ), address, port );
+		return i >= 0 ? slots[i].session : null;
+	}
+
+	public synchronized Admission register( InetAddress address, int port, S session ) {
+		long key = key( address, port );
+
+		if( indexOf( key, address, port ) >= 0 ) {
+			duplicates.incrementAndGet();
+			return Admission.DUPLICATE;
+		}
+
+		if( size >= maxSessions ) {
+			rejected.incrementAndGet();
+			return Admission.FULL;
+		}
+
+		int i = home( key );
+		while( slots[i] != null ) {
+			i = (i + 1) & mask;
+		}
+
+		slots[i] = new Slot<>( key, address, port, session );
+		size++;
+		added.incrementAndGet();
+		return Admission.ADDED;
+	}
+
+	public synchronized boolean remove( InetAddress address, int port, S session ) {
+		int i = indexOf( key( address, port ), address, port );
+		if( i < 0 || slots[i].session != session ) {
+			return false;
+		}
+
+		removeAt( i );
+		return true;
+	}
+
+	/**
+	 * Drops and closes every session that hasn't seen activity within the idle timeout.
+	 */
+	public void expireIdle( long now ) {
+		Object[] idle = null;
+		int count = 0;
+
+		synchronized( this ) {
+			for( int i = 0; i < slots.length; i++ ) {
+				Slot<S> slot = slots[i];
+				if( slot != null && now - slot.session.getLastActivity() > idleTimeout ) {
+					if( idle == null ) {
+						idle = new Object[ size ];
+					}
+					idle[count++] = slot.session;
+					
+					removeAt( i );
+					// Backward shift may have moved a later slot into this one
+					i--;
+				}
+			}
+		}
+
+		// Close outside the lock, engines may call back into the table from close()
+		for( int i = 0; i < count; i++ ) {
+			@SuppressWarnings( "unchecked" )
+			S session = (S)idle[i];
+			expired.incrementAndGet();
+			session.close();
+		}
+	}
+
+	public synchronized void forEach( Consumer<S> consumer ) {
+		for( Slot<S> slot : slots ) {
+			if( slot != null ) {
+				consumer.accept( slot.session );
+			}
+		}
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	public long getAdded() {
+		return added.get();
+	}
+
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public long getExpired() {
+		return expired.get();
+	}
+
+	private int home( long key ) {
+		// fmix64 from MurmurHash3 so neighbouring ports and hosts spread out
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key & mask;
+	}
+
+	private int indexOf( long key, InetAddress address, int port ) {
+		int i = home( key );
+		while( slots[i] != null ) {
+			if( slots[i].matches( key, address, port ) ) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void removeAt( int i ) {
+		// Backward shift deletion keeps probe chains intact without tombstones
+		int j = i;
+		while( true ) {
+			j = (j + 1) & mask;
+			if( slots[j] == null ) {
+				break;
+			}
+
+			int k = home( slots[j].key );
+			boolean inPlace = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+			if( !inPlace ) {
+				slots[i] = slots[j];
+				i = j;
+			}
+		}
+
+		slots[i] = null;
+		size--;
+	}
+}
@@ -0,0 +1,34 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+
+import org.apache.commons.net.tftp.TFTP;
+
+/**
+ * Exposes the raw datagram socket of the commons-net {@link TFTP} client.
+ * {@link TFTP#receive()} drops everything after the transfer mode of a request
+ * and {@link org.apache.commons.net.tftp.TFTPDataPacket} caps blocks at 512 bytes,
+ * so option negotiation and large blocks have to go around them.
+ */
+public class TFTPSocket extends TFTP {
+
+	public void receiveDatagram( DatagramPacket datagram ) throws IOException {
+		getSocket().receive( datagram );
+	}
+
+	public void sendDatagram( DatagramPacket datagram ) throws IOException {
+		getSocket().send( datagram );
+	}
+
+	private DatagramSocket getSocket() throws SocketException {
+		// close() may null the socket from another thread
+		DatagramSocket socket = _socket_;
+		if( socket == null ) {
+			throw new SocketException( "Socket is closed" );
+		}
+		return socket;
+	}
+}
@@ -0,0 +1,137 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a single transfer. Only the thread driving the transfer writes
+ * them, so they are plain volatiles that the REST view can read at any time.
+ */
+public class TFTPTransferStats {
+
+	private static final AtomicLong nextId = new AtomicLong();
+
+	private final long id = nextId.incrementAndGet();
+	private final String client;
+	private final String image;
+	private final String filePath;
+	private final long fileLength;
+	private final int blockSize;
+	private final int windowSize;
+	private final long startTime = System.currentTimeMillis();
+	private final long startNanos = System.nanoTime();
+
+	private volatile Map<String, String> options = Collections.emptyMap();
+	private volatile TFTPMetrics metrics = null;
+
+	private volatile long bytesSent = 0;
+	private volatile long blocksSent = 0;
+	private volatile long retransmits = 0;
+	private volatile long endNanos = 0;
+	private volatile boolean complete = false;
+	private final AtomicBoolean finished = new AtomicBoolean( false );
+
+	public TFTPTransferStats( String client, String image, String filePath, long fileLength, int blockSize, int windowSize ) {
+		this.client = client;
+		this.image = image;
+		this.filePath = filePath;
+		this.fileLength = fileLength;
+		this.blockSize = blockSize;
+		this.windowSize = windowSize;
+	}
+
+	void started( TFTPMetrics metrics, Map<String, String> options ) {
+		this.metrics = metrics;
+		this.options = options;
+	}
+
+	void blockSent( int length, boolean retransmit ) {
+		bytesSent += length;
+		blocksSent++;
+		if( retransmit ) {
+			retransmits++;
+		}
+	}
+
+	/**
+	 * Ends the transfer, only the first call counts so every way a session can
+	 * go away may call it.
+	 */
+	public void finish( boolean complete ) {
+		if( !finished.compareAndSet( false, true ) ) {
+			return;
+		}
+
+		this.complete = complete;
+		this.endNanos = System.nanoTime();
+
+		TFTPMetrics metrics = this.metrics;
+		if( metrics != null ) {
+			metrics.finished( this );
+		}
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getClient() {
+		return client;
+	}
+
+	public String getImage() {
+		return image;
+	}
+
+	public String getFilePath() {
+		return filePath;
+	}
+
+	public long getFileLength() {
+		return fileLength;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public Map<String, String> getOptions() {
+		return options;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public long getDurationMillis() {
+		long end = endNanos;
+		return TimeUnit.NANOSECONDS.toMillis( (end == 0 ? System.nanoTime() : end) - startNanos );
+	}
+
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	public long getBlocksSent() {
+		return blocksSent;
+	}
+
+	public long getRetransmits() {
+		return retransmits;
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	public boolean isFinished() {
+		return finished.get();
+	}
+}
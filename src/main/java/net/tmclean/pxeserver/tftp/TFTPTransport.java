@@ -0,0 +1,20 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.io.IOException;
+
+/**
+ * Puts DATA packets on the wire for a {@link TFTPSendContext}, leaving the
+ * socket API and buffer management to the engine serving the session.
+ */
+public interface TFTPTransport {
+
+	void sendData( int blockNumber, byte[] data, int length ) throws IOException;
+
+	/**
+	 * @return false if the engine can't wait for a block to be read ahead, the
+	 * window then stops at that block until the engine resumes it
+	 */
+	default boolean awaitsReadAhead() {
+		return true;
+	}
+}
@@ -0,0 +1,120 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel for a single thread. Scheduling, cancelling and expiring
+ * are constant time, and timers are intrusive list nodes owned by the caller
+ * so re-arming one allocates nothing.
+ * <p>
+ * Only {@link NioTFTPServer} needs one, its selector thread serves every
+ * session. A {@link TFTPSession} has a thread of its own blocked on its socket,
+ * which waits out the same {@link RttEstimator} deadline as its receive timeout.
+ */
+public class TimerWheel<T> {
+
+	public static class Timer<T> {
+
+		private final T payload;
+
+		private long tick = -1;
+		private Timer<T> prev;
+		private Timer<T> next;
+
+		private Timer( T payload ) {
+			this.payload = payload;
+		}
+
+		public T getPayload() {
+			return payload;
+		}
+
+		public boolean isScheduled() {
+			return tick >= 0;
+		}
+	}
+
+	private final long tickNanos;
+	private final int mask;
+	private final Timer<T>[] buckets;
+	private final Consumer<T> handler;
+
+	private long currentTick;
+
+	@SuppressWarnings( "unchecked" )
+	public TimerWheel( long tickNanos, int wheelSize, long now, Consumer<T> handler ) {
+		if( Integer.bitCount( wheelSize ) != 1 ) {
+			throw new IllegalArgumentException( "Wheel size must be a power of two, got " + wheelSize );
+		}
+
+		this.tickNanos = tickNanos;
+		this.mask = wheelSize - 1;
+		this.buckets = (Timer<T>[])new Timer<?>[ wheelSize ];
+		this.handler = handler;
+		this.currentTick = now / tickNanos;
+	}
+
+	public Timer<T> newTimer( T payload ) {
+		return new Timer<>( payload );
+	}
+
+	public long getTickNanos() {
+		return tickNanos;
+	}
+
+	public void schedule( Timer<T> timer, long deadline ) {
+		cancel( timer );
+
+		// Round up so a timer never fires early, and never into a tick already processed
+		long tick = Math.max( (deadline + tickNanos - 1) / tickNanos, currentTick + 1 );
+		int bucket = (int)(tick & mask);
+
+		timer.tick = tick;
+		timer.prev = null;
+		timer.next = buckets[bucket];
+		if( timer.next != null ) {
+			timer.next.prev = timer;
+		}
+		buckets[bucket] = timer;
+	}
+
+	public void cancel( Timer<T> timer ) {
+		if( !timer.isScheduled() ) {
+			return;
+		}
+
+		if( timer.prev != null ) {
+			timer.prev.next = timer.next;
+		}
+		else {
+			buckets[(int)(timer.tick & mask)] = timer.next;
+		}
+
+		if( timer.next != null ) {
+			timer.next.prev = timer.prev;
+		}
+
+		timer.tick = -1;
+		timer.prev = null;
+		timer.next = null;
+	}
+
+	public void advance( long now ) {
+		long targetTick = now / tickNanos;
+
+		while( currentTick < targetTick ) {
+			currentTick++;
+
+			// Timers further out than one revolution share the bucket and stay put
+			Timer<T> timer = buckets[(int)(currentTick & mask)];
+			while( timer != null ) {
+				Timer<T> next = timer.next;
+				if( timer.tick <= currentTick ) {
+					cancel( timer );
+					handler.accept( timer.payload );
+				}
+				timer = next;
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package net.tmclean.pxeserver.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations in power of two millisecond buckets, cheap
+ * enough to record every transfer. Percentiles are reported as the upper
+ * bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+
+	// Bucket i holds durations below 2^i ms, the last one everything longer
+	private static final int BUCKETS = 24;
+
+	private final AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMillis = new AtomicLong();
+	private final AtomicLong maxMillis = new AtomicLong();
+
+	public void record( long millis ) {
+		millis = Math.max( 0, millis );
+
+		int bucket = Math.min( BUCKETS - 1, 64 - Long.numberOfLeadingZeros( millis ) );
+		counts.incrementAndGet( bucket );
+		count.incrementAndGet();
+		totalMillis.addAndGet( millis );
+
+		long max;
+		while( millis > (max = maxMillis.get()) && !maxMillis.compareAndSet( max, millis ) ) {
+			// Lost to a concurrent update, try again
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMeanMillis() {
+		long n = count.get();
+		return n == 0 ? 0 : totalMillis.get() / n;
+	}
+
+	public long getMaxMillis() {
+		return maxMillis.get();
+	}
+
+	public long getP50Millis() {
+		return percentile( 0.50 );
+	}
+
+	public long getP90Millis() {
+		return percentile( 0.90 );
+	}
+
+	public long getP99Millis() {
+		return percentile( 0.99 );
+	}
+
+	public long percentile( double p ) {
+		long n = count.get();
+		if( n == 0 ) {
+			return 0;
+		}
+
+		long rank = (long)Math.ceil( p * n );
+		long seen = 0;
+		for( int i = 0; i < BUCKETS; i++ ) {
+			seen += counts.get( i );
+			if( seen >= rank ) {
+				return Math.min( (1L << i), getMaxMillis() );
+			}
+		}
+		return getMaxMillis();
+	}
+}
@@ -0,0 +1,156 @@
+package net.tmclean.pxeserver.image;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ImageTableStoreTest {
+
+	private Path indexDir;
+	private ImageTableStore store;
+	private Image image;
+
+	@Before
+	public void setUp() throws IOException {
+		this.indexDir = Files.createTempDirectory( "pxeserver-index-test" ).resolve( "index" );
+		this.store = new ImageTableStore( indexDir.toString() );
+
+		this.image = new Image();
+		this.image.setId( 0x01000000L );
+		this.image.setName( "test" );
+		this.image.setLocation( "/srv/images/test.iso" );
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try( Stream<Path> paths = Files.walk( indexDir.getParent() ) ) {
+			paths.sorted( Comparator.reverseOrder() ).map( Path::toFile ).forEach( File::delete );
+		}
+	}
+
+	private static ImageTable newTable() {
+		ImageTable.Builder builder = new ImageTable.Builder( 1000L, 16L );
+		int boot = builder.add( ImageTable.ROOT, "boot", 0, 1000L, 17L, true );
+		builder.add( boot, "vmlinuz", 4096, 2000L, 20L, false );
+		builder.add( boot, "initrd.img", 8192, 3000L, 30L, false );
+		builder.add( ImageTable.ROOT, "README", 10, 4000L, 40L, false );
+		return builder.build();
+	}
+
+	private File indexFile() throws IOException {
+		try( Stream<Path> files = Files.list( indexDir ) ) {
+			return files.filter( p -> p.toString().endsWith( ".toc" ) ).findFirst().get().toFile();
+		}
+	}
+
+	@Test
+	public void roundTripsEveryRow() {
+		// A removed row followed by a reuse, so the stored table has a gap and a generation
+		ImageTable.Builder builder = new ImageTable.Builder( newTable() );
+		builder.remove( builder.indexOf( "boot/vmlinuz" ) );
+		ImageTable removed = builder.build();
+
+		builder = new ImageTable.Builder( removed );
+		builder.add( ImageTable.ROOT, "LICENSE", 5, 5000L, 50L, false );
+		ImageTable table = builder.build();
+
+		store.save( image, 123L, 456L, table );
+		ImageTable loaded = store.load( image, 123L, 456L );
+
+		assertNotNull( loaded );
+		assertEquals( table.size(), loaded.size() );
+		for( int row = 0; row < table.size(); row++ ) {
+			assertEquals( table.getName( row ), loaded.getName( row ) );
+			assertEquals( table.getParent( row ), loaded.getParent( row ) );
+			assertEquals( table.getLength( row ), loaded.getLength( row ) );
+			assertEquals( table.getLastModified( row ), loaded.getLastModified( row ) );
+			assertEquals( table.getExtent( row ), loaded.getExtent( row ) );
+			assertEquals( table.getGeneration( row ), loaded.getGeneration( row ) );
+			assertEquals( table.isDirectory( row ), loaded.isDirectory( row ) );
+			assertEquals( table.isRemoved( row ), loaded.isRemoved( row ) );
+			assertEquals( table.getFileId( row ), loaded.getFileId( row ) );
+		}
+
+		assertEquals( table.indexOf( "LICENSE" ), loaded.indexOf( "LICENSE" ) );
+		// Restored entries are listed in row order, LICENSE took the row vmlinuz left behind
+		assertEquals( Arrays.asList( "boot", "LICENSE", "README" ), loaded.listChildren( ImageTable.ROOT ) );
+	}
+
+	@Test
+	public void ignoresAnIndexOfAnotherVersion() {
+		store.save( image, 123L, 456L, newTable() );
+
+		assertNull( store.load( image, 123L, 457L ) );
+		assertNull( store.load( image, 124L, 456L ) );
+
+		Image moved = new Image();
+		moved.setName( "test" );
+		moved.setLocation( "/srv/images/other.iso" );
+		assertNull( store.load( moved, 123L, 456L ) );
+	}
+
+	@Test
+	public void ignoresATruncatedIndex() throws IOException {
+		store.save( image, 123L, 456L, newTable() );
+
+		try( RandomAccessFile file = new RandomAccessFile( indexFile(), "rw" ) ) {
+			file.setLength( file.length() - 3 );
+		}
+
+		assertNull( store.load( image, 123L, 456L ) );
+	}
+
+	@Test
+	public void ignoresABadMagic() throws IOException {
+		store.save( image, 123L, 456L, newTable() );
+
+		try( RandomAccessFile file = new RandomAccessFile( indexFile(), "rw" ) ) {
+			file.writeInt( 0 );
+		}
+
+		assertNull( store.load( image, 123L, 456L ) );
+	}
+
+	@Test
+	public void ignoresAnIndexWithABadName() {
+		ImageTable.Builder builder = new ImageTable.Builder( 1000L, 0L );
+		int boot = builder.add( ImageTable.ROOT, "boot", 0, 0L, 0L, true );
+		builder.add( boot, "..", 10, 0L, 0L, false );
+		store.save( image, 123L, 456L, builder.build() );
+
+		assertNull( store.load( image, 123L, 456L ) );
+	}
+
+	@Test
+	public void ignoresAnIndexWithAFileAsParent() {
+		ImageTable.Builder builder = new ImageTable.Builder( 1000L, 0L );
+		int file = builder.add( ImageTable.ROOT, "vmlinuz", 10, 0L, 0L, false );
+		builder.add( file, "nested", 10, 0L, 0L, false );
+		store.save( image, 123L, 456L, builder.build() );
+
+		assertNull( store.load( image, 123L, 456L ) );
+	}
+
+	@Test
+	public void turnedOffByAnEmptyDirectory() {
+		ImageTableStore off = new ImageTableStore( "" );
+		off.save( image, 123L, 456L, newTable() );
+
+		assertNull( off.load( image, 123L, 456L ) );
+		assertFalse( Files.exists( indexDir ) );
+	}
+}
@@ -0,0 +1,138 @@
+package net.tmclean.pxeserver.image;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ImageTableTest {
+
+	private static ImageTable.Builder newTree() {
+		ImageTable.Builder builder = new ImageTable.Builder( 1000L, 0L );
+		int boot = builder.add( ImageTable.ROOT, "boot", 0, 1000L, 0, true );
+		builder.add( boot, "vmlinuz", 4096, 2000L, 20, false );
+		builder.add( boot, "initrd.img", 8192, 3000L, 30, false );
+		builder.add( ImageTable.ROOT, "README", 10, 4000L, 40, false );
+		return builder;
+	}
+
+	@Test
+	public void findsEntriesByPath() {
+		ImageTable table = newTree().build();
+
+		int row = table.indexOf( "boot/vmlinuz" );
+		assertTrue( row > ImageTable.ROOT );
+		assertEquals( "vmlinuz", table.getName( row ) );
+		assertEquals( "boot/vmlinuz", table.getPath( row ) );
+		assertEquals( 4096, table.getLength( row ) );
+		assertEquals( 2000L, table.getLastModified( row ) );
+		assertEquals( 20, table.getExtent( row ) );
+		assertFalse( table.isDirectory( row ) );
+
+		assertTrue( table.isDirectory( table.indexOf( "boot" ) ) );
+		assertEquals( ImageTable.ROOT, table.indexOf( "" ) );
+		assertEquals( row, table.indexOf( "/boot//vmlinuz" ) );
+		assertEquals( -1, table.indexOf( "boot/missing" ) );
+		assertEquals( -1, table.indexOf( "README/vmlinuz" ) );
+	}
+
+	@Test
+	public void matchesIgnoringCase() {
+		ImageTable table = newTree().build();
+
+		assertEquals( table.indexOf( "boot/initrd.img" ), table.indexOfIgnoreCase( "BOOT/Initrd.IMG" ) );
+		assertEquals( -1, table.indexOf( "BOOT/Initrd.IMG" ) );
+	}
+
+	@Test
+	public void listsChildrenInOrderAdded() {
+		ImageTable table = newTree().build();
+
+		assertEquals( Arrays.asList( "boot", "README" ), table.listChildren( ImageTable.ROOT ) );
+		assertEquals( Arrays.asList( "boot/vmlinuz", "boot/initrd.img" ), table.listChildren( table.indexOf( "boot" ) ) );
+		assertTrue( table.listChildren( table.indexOf( "README" ) ).isEmpty() );
+	}
+
+	@Test
+	public void addingAnExistingNameReturnsItsRow() {
+		ImageTable.Builder builder = newTree();
+		int boot = builder.indexOf( "boot" );
+
+		assertEquals( builder.indexOf( "boot/vmlinuz" ), builder.add( boot, "vmlinuz", 1, 1L, 1L, false ) );
+	}
+
+	@Test
+	public void removingADirectoryRemovesItsEntries() {
+		ImageTable.Builder builder = new ImageTable.Builder( newTree().build() );
+		builder.remove( builder.indexOf( "boot" ) );
+		ImageTable table = builder.build();
+
+		assertEquals( -1, table.indexOf( "boot" ) );
+		assertEquals( -1, table.indexOf( "boot/vmlinuz" ) );
+		assertEquals( Arrays.asList( "README" ), table.listChildren( ImageTable.ROOT ) );
+	}
+
+	@Test
+	public void reusedRowGetsANewFileId() {
+		ImageTable table = newTree().build();
+		int row = table.indexOf( "README" );
+		long oldId = table.getFileId( row );
+		assertEquals( row, table.indexOfId( oldId ) );
+
+		ImageTable.Builder builder = new ImageTable.Builder( table );
+		builder.remove( row );
+		table = builder.build();
+		assertEquals( -1, table.indexOfId( oldId ) );
+
+		builder = new ImageTable.Builder( table );
+		assertEquals( row, builder.add( ImageTable.ROOT, "LICENSE", 20, 5000L, 50, false ) );
+		table = builder.build();
+
+		long newId = table.getFileId( row );
+		assertNotEquals( oldId, newId );
+		assertEquals( row, table.indexOfId( newId ) );
+		assertEquals( -1, table.indexOfId( oldId ) );
+		assertEquals( 1, table.getGeneration( row ) );
+	}
+
+	@Test
+	public void generationWrapsWithinItsBits() {
+		ImageTable table = newTree().build();
+		int row = table.indexOf( "README" );
+
+		for( int i = 0; i <= 0xffff; i++ ) {
+			ImageTable.Builder builder = new ImageTable.Builder( table );
+			builder.remove( builder.indexOf( i == 0 ? "README" : "file" ) );
+			table = builder.build();
+
+			builder = new ImageTable.Builder( table );
+			assertEquals( row, builder.add( ImageTable.ROOT, "file", i, 0L, 0L, false ) );
+			table = builder.build();
+
+			long fileId = table.getFileId( row );
+			assertEquals( row, fileId & ImageTable.MAX_ENTRIES );
+			assertEquals( 0, fileId & 0xff000000L );
+			assertEquals( 0, fileId >>> 48 );
+			assertEquals( row, table.indexOfId( fileId ) );
+		}
+
+		// 65536 reuses bring the id back round to the first one
+		assertEquals( (long)row, table.getFileId( row ) );
+	}
+
+	@Test
+	public void acceptsOnlyPlainNames() {
+		assertTrue( ImageTable.isValidName( "vmlinuz" ) );
+		assertTrue( ImageTable.isValidName( "..hidden" ) );
+		assertFalse( ImageTable.isValidName( "" ) );
+		assertFalse( ImageTable.isValidName( null ) );
+		assertFalse( ImageTable.isValidName( "." ) );
+		assertFalse( ImageTable.isValidName( ".." ) );
+		assertFalse( ImageTable.isValidName( "boot/vmlinuz" ) );
+		assertFalse( ImageTable.isValidName( "nul\0" ) );
+	}
+}
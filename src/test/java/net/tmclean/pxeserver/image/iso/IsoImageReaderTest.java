@@ -0,0 +1,221 @@
+package net.tmclean.pxeserver.image.iso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.tmclean.pxeserver.image.ImageTable;
+
+public class IsoImageReaderTest {
+
+	private static final int SECTOR = IsoImageReader.SECTOR_SIZE;
+
+	private static final int PRIMARY     = 16;
+	private static final int JOLIET      = 17;
+	private static final int ROOT        = 20;
+	private static final int BOOT        = 21;
+	private static final int JOLIET_ROOT = 22;
+	private static final int JOLIET_BOOT = 23;
+	private static final int README      = 24;
+	private static final int VMLINUZ     = 25;
+
+	private File isoFile;
+
+	@Before
+	public void setUp() throws IOException {
+		this.isoFile = File.createTempFile( "pxeserver-test", ".iso" );
+	}
+
+	@After
+	public void tearDown() {
+		isoFile.delete();
+	}
+
+	/**
+	 * Lays out an image with README.TXT and BOOT/VMLINUZ. in its root, named
+	 * readme.txt and boot/vmlinuz through Rock Ridge and Read Me.txt and
+	 * boot/vmlinuz through Joliet.
+	 */
+	private void writeImage( boolean rockRidge, boolean joliet ) throws IOException {
+		ByteBuffer iso = ByteBuffer.allocate( (VMLINUZ + 1) * SECTOR ).order( ByteOrder.LITTLE_ENDIAN );
+
+		descriptor( iso, PRIMARY, 1 );
+		iso.putShort( PRIMARY * SECTOR + 128, (short)SECTOR );
+		record( iso, PRIMARY * SECTOR + 156, ROOT, SECTOR, true, new byte[] { 0 }, null );
+
+		int terminator = PRIMARY + 1;
+		if( joliet ) {
+			descriptor( iso, JOLIET, 2 );
+			iso.put( JOLIET * SECTOR + 88, (byte)'%' );
+			iso.put( JOLIET * SECTOR + 89, (byte)'/' );
+			iso.put( JOLIET * SECTOR + 90, (byte)'E' );
+			record( iso, JOLIET * SECTOR + 156, JOLIET_ROOT, SECTOR, true, new byte[] { 0 }, null );
+			terminator++;
+		}
+		descriptor( iso, terminator, 255 );
+
+		int pos = ROOT * SECTOR;
+		pos += record( iso, pos, ROOT, SECTOR, true, new byte[] { 0 }, rockRidge ? sharingProtocol() : null );
+		pos += record( iso, pos, ROOT, SECTOR, true, new byte[] { 1 }, null );
+		pos += record( iso, pos, BOOT, SECTOR, true, ascii( "BOOT" ), rockRidge ? alternateName( "boot" ) : null );
+		record( iso, pos, README, 10, false, ascii( "README.TXT;1" ), rockRidge ? alternateName( "readme.txt" ) : null );
+
+		pos = BOOT * SECTOR;
+		pos += record( iso, pos, BOOT, SECTOR, true, new byte[] { 0 }, null );
+		pos += record( iso, pos, ROOT, SECTOR, true, new byte[] { 1 }, null );
+		record( iso, pos, VMLINUZ, 20, false, ascii( "VMLINUZ.;1" ), rockRidge ? alternateName( "vmlinuz" ) : null );
+
+		pos = JOLIET_ROOT * SECTOR;
+		pos += record( iso, pos, JOLIET_ROOT, SECTOR, true, new byte[] { 0 }, null );
+		pos += record( iso, pos, JOLIET_ROOT, SECTOR, true, new byte[] { 1 }, null );
+		pos += record( iso, pos, JOLIET_BOOT, SECTOR, true, ucs2( "boot" ), null );
+		record( iso, pos, README, 10, false, ucs2( "Read Me.txt;1" ), null );
+
+		pos = JOLIET_BOOT * SECTOR;
+		pos += record( iso, pos, JOLIET_BOOT, SECTOR, true, new byte[] { 0 }, null );
+		pos += record( iso, pos, JOLIET_ROOT, SECTOR, true, new byte[] { 1 }, null );
+		record( iso, pos, VMLINUZ, 20, false, ucs2( "vmlinuz;1" ), null );
+
+		Files.write( isoFile.toPath(), iso.array() );
+	}
+
+	private static void descriptor( ByteBuffer iso, int sector, int type ) {
+		iso.put( sector * SECTOR, (byte)type );
+		for( int i = 0; i < 5; i++ ) {
+			iso.put( sector * SECTOR + 1 + i, (byte)"CD001".charAt( i ) );
+		}
+		iso.put( sector * SECTOR + 6, (byte)1 );
+	}
+
+	/**
+	 * @return the length of the directory record written at the position
+	 */
+	private static int record( ByteBuffer iso, int pos, int sector, int size, boolean directory, byte[] name, byte[] systemUse ) {
+		int padding = name.length % 2 == 0 ? 1 : 0;
+		int length = 33 + name.length + padding + (systemUse == null ? 0 : systemUse.length);
+
+		iso.put( pos, (byte)length );
+		bothEndian( iso, pos + 2, sector );
+		bothEndian( iso, pos + 10, size );
+
+		// 2024-01-02 03:04:05 GMT
+		byte[] date = { 124, 1, 2, 3, 4, 5, 0 };
+		for( int i = 0; i < date.length; i++ ) {
+			iso.put( pos + 18 + i, date[i] );
+		}
+
+		iso.put( pos + 25, (byte)(directory ? 0x02 : 0) );
+		iso.put( pos + 28, (byte)1 );
+		iso.put( pos + 32, (byte)name.length );
+		for( int i = 0; i < name.length; i++ ) {
+			iso.put( pos + 33 + i, name[i] );
+		}
+		if( systemUse != null ) {
+			for( int i = 0; i < systemUse.length; i++ ) {
+				iso.put( pos + 33 + name.length + padding + i, systemUse[i] );
+			}
+		}
+
+		return length;
+	}
+
+	private static void bothEndian( ByteBuffer iso, int pos, int value ) {
+		iso.putInt( pos, value );
+		iso.put( pos + 4, (byte)(value >>> 24) );
+		iso.put( pos + 5, (byte)(value >>> 16) );
+		iso.put( pos + 6, (byte)(value >>> 8) );
+		iso.put( pos + 7, (byte)value );
+	}
+
+	private static byte[] sharingProtocol() {
+		return new byte[] { 'S', 'P', 7, 1, (byte)0xBE, (byte)0xEF, 0 };
+	}
+
+	private static byte[] alternateName( String name ) {
+		byte[] bytes = name.getBytes( StandardCharsets.UTF_8 );
+		byte[] entry = new byte[ 5 + bytes.length ];
+		entry[0] = 'N';
+		entry[1] = 'M';
+		entry[2] = (byte)entry.length;
+		entry[3] = 1;
+		System.arraycopy( bytes, 0, entry, 5, bytes.length );
+		return entry;
+	}
+
+	private static byte[] ascii( String name ) {
+		return name.getBytes( StandardCharsets.US_ASCII );
+	}
+
+	private static byte[] ucs2( String name ) {
+		return name.getBytes( StandardCharsets.UTF_16BE );
+	}
+
+	private ImageTable read() throws IOException {
+		try( IsoImageReader reader = new IsoImageReader( isoFile ) ) {
+			return reader.read();
+		}
+	}
+
+	@Test
+	public void prefersRockRidgeNames() throws IOException {
+		writeImage( true, true );
+		ImageTable table = read();
+
+		assertEquals( Arrays.asList( "boot", "readme.txt" ), table.listChildren( ImageTable.ROOT ) );
+		assertEquals( Arrays.asList( "boot/vmlinuz" ), table.listChildren( table.indexOf( "boot" ) ) );
+	}
+
+	@Test
+	public void usesJolietNamesWithoutRockRidge() throws IOException {
+		writeImage( false, true );
+		ImageTable table = read();
+
+		assertEquals( Arrays.asList( "boot", "Read Me.txt" ), table.listChildren( ImageTable.ROOT ) );
+		assertEquals( Arrays.asList( "boot/vmlinuz" ), table.listChildren( table.indexOf( "boot" ) ) );
+	}
+
+	@Test
+	public void stripsVersionsFromPlainNames() throws IOException {
+		writeImage( false, false );
+		ImageTable table = read();
+
+		assertEquals( Arrays.asList( "BOOT", "README.TXT" ), table.listChildren( ImageTable.ROOT ) );
+		assertEquals( Arrays.asList( "BOOT/VMLINUZ" ), table.listChildren( table.indexOf( "BOOT" ) ) );
+	}
+
+	@Test
+	public void readsExtentsLengthsAndDates() throws IOException {
+		writeImage( true, true );
+		ImageTable table = read();
+
+		int readme = table.indexOf( "readme.txt" );
+		assertFalse( table.isDirectory( readme ) );
+		assertEquals( (long)README * SECTOR, table.getExtent( readme ) );
+		assertEquals( 10, table.getLength( readme ) );
+		assertEquals( 1704164645000L, table.getLastModified( readme ) );
+
+		int vmlinuz = table.indexOf( "boot/vmlinuz" );
+		assertEquals( (long)VMLINUZ * SECTOR, table.getExtent( vmlinuz ) );
+		assertEquals( 20, table.getLength( vmlinuz ) );
+
+		assertTrue( table.isDirectory( table.indexOf( "boot" ) ) );
+	}
+
+	@Test( expected = IOException.class )
+	public void rejectsAFileWithoutDescriptors() throws IOException {
+		Files.write( isoFile.toPath(), new byte[ (PRIMARY + 2) * SECTOR ] );
+		read();
+	}
+}
@@ -0,0 +1,49 @@
+package net.tmclean.pxeserver.rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class BootRestControllerTest {
+
+	private static final long[] WHOLE_FILE = new long[ 0 ];
+
+	private static long[] range( long start, long end ) {
+		return new long[] { start, end };
+	}
+
+	@Test
+	public void parsesABoundedRange() {
+		assertArrayEquals( range( 0, 99 ), BootRestController.parseRange( "bytes=0-99", 1000 ) );
+		assertArrayEquals( range( 10, 10 ), BootRestController.parseRange( "bytes= 10 - 10 ", 1000 ) );
+	}
+
+	@Test
+	public void clampsTheEndToTheFile() {
+		assertArrayEquals( range( 900, 999 ), BootRestController.parseRange( "bytes=900-5000", 1000 ) );
+		assertArrayEquals( range( 900, 999 ), BootRestController.parseRange( "bytes=900-", 1000 ) );
+	}
+
+	@Test
+	public void parsesASuffixRange() {
+		assertArrayEquals( range( 800, 999 ), BootRestController.parseRange( "bytes=-200", 1000 ) );
+		assertArrayEquals( range( 0, 999 ), BootRestController.parseRange( "bytes=-5000", 1000 ) );
+	}
+
+	@Test
+	public void rejectsUnsatisfiableRanges() {
+		assertNull( BootRestController.parseRange( "bytes=1000-", 1000 ) );
+		assertNull( BootRestController.parseRange( "bytes=20-10", 1000 ) );
+		assertNull( BootRestController.parseRange( "bytes=-0", 1000 ) );
+		assertNull( BootRestController.parseRange( "bytes=0-", 0 ) );
+	}
+
+	@Test
+	public void sendsTheWholeFileForRangesItDoesntServe() {
+		assertArrayEquals( WHOLE_FILE, BootRestController.parseRange( "bytes=0-9,20-29", 1000 ) );
+		assertArrayEquals( WHOLE_FILE, BootRestController.parseRange( "items=0-9", 1000 ) );
+		assertArrayEquals( WHOLE_FILE, BootRestController.parseRange( "bytes=10", 1000 ) );
+		assertArrayEquals( WHOLE_FILE, BootRestController.parseRange( "bytes=a-b", 1000 ) );
+	}
+}
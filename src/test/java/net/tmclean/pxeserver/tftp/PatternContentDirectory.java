@@ -0,0 +1,92 @@
+package net.tmclean.pxeserver.tftp;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tmclean.pxeserver.image.Image;
+import net.tmclean.pxeserver.image.ImageFileEntry;
+import net.tmclean.pxeserver.image.aggregate.ImageContentDirectory;
+
+/**
+ * A single file of the given length whose every byte is its offset modulo 251,
+ * so a block read from the wrong place shows.
+ */
+class PatternContentDirectory implements ImageContentDirectory {
+
+	static final String PATH = "pxelinux.0";
+
+	final long length;
+	final AtomicLong reads = new AtomicLong();
+
+	PatternContentDirectory( long length ) {
+		this.length = length;
+	}
+
+	static byte expected( long offset ) {
+		return (byte)(offset % 251);
+	}
+
+	@Override
+	public void init() {
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	@Override
+	public long getImageFileSize( Image image, String filePath ) {
+		return length;
+	}
+
+	@Override
+	public boolean imageFilePathExists( Image image, String filePath ) {
+		return PATH.equals( filePath );
+	}
+
+	@Override
+	public ImageFileEntry getFileEntry( Image image, String filePath ) {
+		if( !PATH.equals( filePath ) ) {
+			return null;
+		}
+
+		ImageFileEntry entry = new ImageFileEntry();
+		entry.setName( PATH );
+		entry.setPath( PATH );
+		entry.setLength( length );
+		return entry;
+	}
+
+	@Override
+	public long filePathToId( Image image, String filePath ) {
+		return 1L;
+	}
+
+	@Override
+	public String idToFilePath( Image image, long id ) {
+		return PATH;
+	}
+
+	@Override
+	public List<String> listImagePath( Image image, String filePath ) {
+		return Collections.singletonList( PATH );
+	}
+
+	@Override
+	public int readImageFile( Image image, String filePath, byte[] data, long offset, int len ) throws IOException {
+		return readImageFileById( image, 1L, data, offset, len );
+	}
+
+	@Override
+	public int readImageFileById( Image image, long fileId, byte[] data, long offset, int len ) throws IOException {
+		reads.incrementAndGet();
+
+		int count = (int)Math.max( 0, Math.min( len, length - offset ) );
+		for( int i = 0; i < count; i++ ) {
+			data[i] = expected( offset + i );
+		}
+		return count;
+	}
+}
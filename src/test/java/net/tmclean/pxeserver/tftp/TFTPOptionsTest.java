@@ -0,0 +1,125 @@
+package net.tmclean.pxeserver.tftp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class TFTPOptionsTest {
+
+	private static TFTPOptions request( String... options ) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write( 0 );
+		out.write( 1 );
+		for( String field : concat( "pxelinux.0", "octet", options ) ) {
+			byte[] bytes = field.getBytes( StandardCharsets.US_ASCII );
+			out.write( bytes, 0, bytes.length );
+			out.write( 0 );
+		}
+
+		// Padded at both ends so the parser has to respect the offset and length
+		byte[] packet = out.toByteArray();
+		byte[] data = new byte[ packet.length + 8 ];
+		System.arraycopy( packet, 0, data, 3, packet.length );
+		return TFTPOptions.fromRequest( new DatagramPacket( data, 3, packet.length ) );
+	}
+
+	private static String[] concat( String filename, String mode, String[] options ) {
+		String[] fields = new String[ options.length + 2 ];
+		fields[0] = filename;
+		fields[1] = mode;
+		System.arraycopy( options, 0, fields, 2, options.length );
+		return fields;
+	}
+
+	@Test
+	public void defaultsWithoutOptions() {
+		TFTPOptions options = request();
+
+		assertEquals( TFTPOptions.DEFAULT_BLOCK_SIZE, options.getBlockSize() );
+		assertEquals( TFTPOptions.DEFAULT_WINDOW_SIZE, options.getWindowSize() );
+		assertEquals( 0, options.getTimeout() );
+		assertFalse( options.hasAcknowledgedOptions() );
+		assertFalse( options.isTransferSizeRequested() );
+	}
+
+	@Test
+	public void acceptsOptionsWithinLimits() {
+		TFTPOptions options = request( "BLKSIZE", "512", "windowsize", "1", "timeout", "5" );
+
+		assertEquals( 512, options.getBlockSize() );
+		assertEquals( 1, options.getWindowSize() );
+		assertEquals( 5, options.getTimeout() );
+		assertEquals( "512", options.getAcknowledged().get( TFTPOptions.BLKSIZE ) );
+		assertEquals( "1", options.getAcknowledged().get( TFTPOptions.WINDOWSIZE ) );
+		assertEquals( "5", options.getAcknowledged().get( TFTPOptions.TIMEOUT ) );
+	}
+
+	@Test
+	public void clampsSizesToTheServerLimits() {
+		TFTPOptions options = request( "blksize", "65464", "windowsize", "65535" );
+
+		assertEquals( TFTPOptions.getMaxBlockSize(), options.getBlockSize() );
+		assertEquals( TFTPOptions.getMaxWindowSize(), options.getWindowSize() );
+		assertEquals( String.valueOf( TFTPOptions.getMaxBlockSize() ), options.getAcknowledged().get( TFTPOptions.BLKSIZE ) );
+		assertEquals( String.valueOf( TFTPOptions.getMaxWindowSize() ), options.getAcknowledged().get( TFTPOptions.WINDOWSIZE ) );
+	}
+
+	@Test
+	public void ignoresInvalidValues() {
+		TFTPOptions options = request( "blksize", "7", "windowsize", "0", "timeout", "256", "tsize", "x" );
+
+		assertEquals( TFTPOptions.DEFAULT_BLOCK_SIZE, options.getBlockSize() );
+		assertEquals( TFTPOptions.DEFAULT_WINDOW_SIZE, options.getWindowSize() );
+		assertEquals( 0, options.getTimeout() );
+		assertFalse( options.hasAcknowledgedOptions() );
+
+		assertFalse( request( "timeout", "0" ).hasAcknowledgedOptions() );
+		assertFalse( request( "blksize", "large" ).hasAcknowledgedOptions() );
+	}
+
+	@Test
+	public void acknowledgesTransferSizeOnceResolved() {
+		TFTPOptions options = request( "tsize", "0" );
+
+		assertTrue( options.isTransferSizeRequested() );
+		assertFalse( options.hasAcknowledgedOptions() );
+
+		options.acknowledgeTransferSize( 1234 );
+		assertEquals( "1234", options.getAcknowledged().get( TFTPOptions.TSIZE ) );
+
+		assertFalse( request().getAcknowledged().containsKey( TFTPOptions.TSIZE ) );
+	}
+
+	@Test
+	public void rewritesTheOackOnceTheSizeIsKnown() {
+		TFTPOptions options = request( "blksize", "1024", "tsize", "0", "timeout", "3" );
+		byte[] before = options.getOackBytes();
+
+		options.acknowledgeTransferSize( 99 );
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write( 0 );
+		expected.write( TFTPOptions.OACK );
+		byte[] body = ("blksize\0" + Math.min( 1024, TFTPOptions.getMaxBlockSize() ) + "\0timeout\0003\0tsize\00099\0").getBytes( StandardCharsets.US_ASCII );
+		expected.write( body, 0, body.length );
+
+		assertArrayEquals( expected.toByteArray(), options.getOackBytes() );
+		assertTrue( before.length < options.getOackBytes().length );
+	}
+
+	@Test
+	public void stopsAtAnUnterminatedField() {
+		byte[] data = "\0\1pxelinux.0\0octet\0blksize\0001024".getBytes( StandardCharsets.US_ASCII );
+		TFTPOptions options = TFTPOptions.fromRequest( new DatagramPacket( data, data.length ) );
+
+		assertEquals( TFTPOptions.DEFAULT_BLOCK_SIZE, options.getBlockSize() );
+		assertTrue( options.getRequested().isEmpty() );
+	}
+}
@@ -0,0 +1,188 @@
+package net.tmclean.pxeserver.tftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+import net.tmclean.pxeserver.image.Image;
+
+public class TFTPSendContextTest {
+
+	/**
+	 * Checks each block against the file content, given the unwrapped block
+	 * number the window is expected to start at.
+	 */
+	private static class CheckingTransport implements TFTPTransport {
+
+		final int blockSize;
+		final boolean awaits;
+
+		long expectedBlock;
+		int lastBlockNumber = -1;
+		int lastLength = -1;
+		int sent = 0;
+
+		CheckingTransport( int blockSize, boolean awaits ) {
+			this.blockSize = blockSize;
+			this.awaits = awaits;
+		}
+
+		@Override
+		public void sendData( int blockNumber, byte[] data, int length ) {
+			assertEquals( expectedBlock & 0xffff, blockNumber );
+
+			long offset = (expectedBlock - 1) * blockSize;
+			for( int i = 0; i < length; i++ ) {
+				assertEquals( PatternContentDirectory.expected( offset + i ), data[i] );
+			}
+
+			lastBlockNumber = blockNumber;
+			lastLength = length;
+			expectedBlock++;
+			sent++;
+		}
+
+		@Override
+		public boolean awaitsReadAhead() {
+			return awaits;
+		}
+	}
+
+	private static TFTPSendContext newContext( PatternContentDirectory content, int blockSize, int windowSize, int readAhead ) {
+		Image image = new Image();
+		image.setName( "test" );
+		return new TFTPSendContext( content, InetAddress.getLoopbackAddress(), 1000, image, PatternContentDirectory.PATH, 1L, content.length, blockSize, windowSize, readAhead );
+	}
+
+	private static void sendAll( TFTPSendContext ctx, CheckingTransport transport ) throws IOException {
+		// Every window is ACKed in full, so it starts where the last one ended
+		while( !ctx.isComplete() ) {
+			assertTrue( ctx.sendWindow( transport ) );
+			assertTrue( ctx.acknowledge( transport.lastBlockNumber ) );
+
+			// A late duplicate of the same ACK is 65536 blocks out and dropped
+			assertFalse( ctx.acknowledge( transport.lastBlockNumber ) );
+		}
+	}
+
+	@Test
+	public void sendsPastTheBlockNumberWrap() throws IOException {
+		int blockSize = 8;
+		long blocks = 0x10000 + 100;
+		PatternContentDirectory content = new PatternContentDirectory( blocks * blockSize + 3 );
+
+		TFTPSendContext ctx = newContext( content, blockSize, 16, 0 );
+		CheckingTransport transport = new CheckingTransport( blockSize, true );
+		transport.expectedBlock = 1;
+		sendAll( ctx, transport );
+
+		assertEquals( (blocks + 1) & 0xffff, transport.lastBlockNumber );
+		assertEquals( 3, transport.lastLength );
+		assertEquals( blocks + 2, transport.expectedBlock );
+	}
+
+	@Test
+	public void readsAheadPastTheBlockNumberWrap() throws IOException {
+		int blockSize = 8;
+		long blocks = 0x10000 + 100;
+		PatternContentDirectory content = new PatternContentDirectory( blocks * blockSize );
+
+		TFTPSendContext ctx = newContext( content, blockSize, 16, 8 );
+		CheckingTransport transport = new CheckingTransport( blockSize, true );
+		transport.expectedBlock = 1;
+		try {
+			sendAll( ctx, transport );
+		}
+		finally {
+			ctx.close();
+		}
+
+		// An exact multiple of the block size ends on an empty block
+		assertEquals( (blocks + 1) & 0xffff, transport.lastBlockNumber );
+		assertEquals( 0, transport.lastLength );
+	}
+
+	@Test
+	public void resendsTheWindowAfterALostBlock() throws IOException {
+		PatternContentDirectory content = new PatternContentDirectory( 100 );
+		TFTPSendContext ctx = newContext( content, 8, 4, 0 );
+		CheckingTransport transport = new CheckingTransport( 8, true );
+
+		transport.expectedBlock = 1;
+		assertTrue( ctx.sendWindow( transport ) );
+		assertEquals( 4, transport.lastBlockNumber );
+
+		// The client only got the first two, the next window starts at block 3
+		assertTrue( ctx.acknowledge( 2 ) );
+		transport.expectedBlock = 3;
+		assertTrue( ctx.sendWindow( transport ) );
+		assertEquals( 6, transport.lastBlockNumber );
+
+		// Nothing past what was sent can be acknowledged
+		assertFalse( ctx.acknowledge( 7 ) );
+		assertTrue( ctx.acknowledge( 6 ) );
+	}
+
+	@Test
+	public void readAheadSurvivesTheGenerationWrap() throws IOException {
+		PatternContentDirectory content = new PatternContentDirectory( 1000 );
+		TFTPSendContext ctx = newContext( content, 8, 4, 8 );
+		try {
+			// Every restart bumps the read-ahead generation, which wraps at 16 bits
+			for( int i = 0; i <= 0x10001; i++ ) {
+				assertTrue( ctx.restartAfter( i % 2 == 0 ? 0 : 5 ) );
+			}
+
+			CheckingTransport transport = new CheckingTransport( 8, true );
+			transport.expectedBlock = 6;
+			assertTrue( ctx.sendWindow( transport ) );
+			assertEquals( 9, transport.lastBlockNumber );
+
+			assertTrue( ctx.acknowledge( 9 ) );
+			transport.expectedBlock = 10;
+			assertTrue( ctx.sendWindow( transport ) );
+			assertEquals( 13, transport.lastBlockNumber );
+		}
+		finally {
+			ctx.close();
+		}
+	}
+
+	@Test
+	public void aWindowThatCantWaitStopsAtAMissingBlock() throws IOException {
+		PatternContentDirectory content = new PatternContentDirectory( 1000 );
+		TFTPSendContext ctx = newContext( content, 8, 4, 8 );
+		try {
+			CheckingTransport transport = new CheckingTransport( 8, false );
+			transport.expectedBlock = 1;
+
+			ctx.rewindWindow();
+			long deadline = System.nanoTime() + 5_000_000_000L;
+			while( !ctx.resumeWindow( transport ) ) {
+				assertTrue( System.nanoTime() < deadline );
+				Thread.yield();
+			}
+
+			// Resumed where it stopped, without sending a block twice
+			assertEquals( 4, transport.sent );
+			assertEquals( 4, transport.lastBlockNumber );
+		}
+		finally {
+			ctx.close();
+		}
+	}
+
+	@Test
+	public void restartRefusesABlockPastTheEnd() {
+		PatternContentDirectory content = new PatternContentDirectory( 100 );
+		TFTPSendContext ctx = newContext( content, 8, 4, 0 );
+
+		assertTrue( ctx.restartAfter( 13 ) );
+		assertFalse( ctx.restartAfter( 14 ) );
+	}
+}
@@ -0,0 +1,129 @@
+package net.tmclean.pxeserver.tftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TFTPSessionTableTest {
+
+	private static class FakeSession implements TFTPSessionTable.Session {
+
+		long lastActivity;
+		boolean closed = false;
+
+		FakeSession( long lastActivity ) {
+			this.lastActivity = lastActivity;
+		}
+
+		@Override
+		public long getLastActivity() {
+			return lastActivity;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	private static final InetAddress CLIENT = InetAddress.getLoopbackAddress();
+
+	@Test
+	public void admitsUpToTheLimit() {
+		TFTPSessionTable<FakeSession> table = new TFTPSessionTable<>( 2, 1000L );
+		FakeSession first = new FakeSession( 0 );
+
+		assertEquals( TFTPSessionTable.Admission.ADDED, table.register( CLIENT, 1000, first ) );
+		assertEquals( TFTPSessionTable.Admission.DUPLICATE, table.register( CLIENT, 1000, new FakeSession( 0 ) ) );
+		assertEquals( TFTPSessionTable.Admission.ADDED, table.register( CLIENT, 1001, new FakeSession( 0 ) ) );
+		assertEquals( TFTPSessionTable.Admission.FULL, table.register( CLIENT, 1002, new FakeSession( 0 ) ) );
+
+		assertSame( first, table.get( CLIENT, 1000 ) );
+		assertEquals( 2, table.size() );
+		assertEquals( 2, table.getAdded() );
+		assertEquals( 1, table.getDuplicates() );
+		assertEquals( 1, table.getRejected() );
+	}
+
+	@Test
+	public void removesOnlyTheRegisteredSession() {
+		TFTPSessionTable<FakeSession> table = new TFTPSessionTable<>( 4, 1000L );
+		FakeSession session = new FakeSession( 0 );
+		table.register( CLIENT, 1000, session );
+
+		assertFalse( table.remove( CLIENT, 1000, new FakeSession( 0 ) ) );
+		assertTrue( table.remove( CLIENT, 1000, session ) );
+		assertFalse( table.contains( CLIENT, 1000 ) );
+		assertEquals( 0, table.size() );
+	}
+
+	@Test
+	public void keepsProbeChainsIntactAcrossRemovals() {
+		// A nearly full table so probe chains run long and wrap around the array
+		TFTPSessionTable<FakeSession> table = new TFTPSessionTable<>( 15, 1000L );
+		Map<Integer, FakeSession> model = new HashMap<>();
+		Random random = new Random( 42 );
+
+		for( int step = 0; step < 20000; step++ ) {
+			int port = random.nextInt( 40 );
+			FakeSession present = model.get( port );
+
+			if( present != null ) {
+				assertTrue( table.remove( CLIENT, port, present ) );
+				model.remove( port );
+			}
+			else {
+				FakeSession session = new FakeSession( 0 );
+				TFTPSessionTable.Admission admission = table.register( CLIENT, port, session );
+				if( model.size() < 15 ) {
+					assertEquals( TFTPSessionTable.Admission.ADDED, admission );
+					model.put( port, session );
+				}
+				else {
+					assertEquals( TFTPSessionTable.Admission.FULL, admission );
+				}
+			}
+
+			assertEquals( model.size(), table.size() );
+			for( int p = 0; p < 40; p++ ) {
+				FakeSession expected = model.get( p );
+				if( expected == null ) {
+					assertNull( table.get( CLIENT, p ) );
+				}
+				else {
+					assertSame( expected, table.get( CLIENT, p ) );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void expiresAndClosesIdleSessions() {
+		TFTPSessionTable<FakeSession> table = new TFTPSessionTable<>( 15, 100L );
+		Map<Integer, FakeSession> sessions = new HashMap<>();
+		for( int port = 0; port < 15; port++ ) {
+			FakeSession session = new FakeSession( port % 3 == 0 ? 500 : 0 );
+			sessions.put( port, session );
+			table.register( CLIENT, port, session );
+		}
+
+		table.expireIdle( 550 );
+
+		assertEquals( 5, table.size() );
+		assertEquals( 10, table.getExpired() );
+		for( Map.Entry<Integer, FakeSession> entry : sessions.entrySet() ) {
+			boolean idle = entry.getKey() % 3 != 0;
+			assertEquals( idle, entry.getValue().closed );
+			assertEquals( !idle, table.contains( CLIENT, entry.getKey() ) );
+		}
+	}
+}
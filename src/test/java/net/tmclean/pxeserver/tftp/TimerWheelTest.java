@@ -0,0 +1,101 @@
+package net.tmclean.pxeserver.tftp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+	private static final long TICK = 10;
+
+	private final List<String> fired = new ArrayList<>();
+	private final TimerWheel<String> wheel = new TimerWheel<>( TICK, 8, 0, fired::add );
+
+	@Test
+	public void firesOnceTheDeadlinePasses() {
+		TimerWheel.Timer<String> timer = wheel.newTimer( "a" );
+		wheel.schedule( timer, 25 );
+		assertTrue( timer.isScheduled() );
+
+		// Rounded up to the next tick, never early
+		wheel.advance( 29 );
+		assertTrue( fired.isEmpty() );
+
+		wheel.advance( 30 );
+		assertEquals( Arrays.asList( "a" ), fired );
+		assertFalse( timer.isScheduled() );
+
+		wheel.advance( 200 );
+		assertEquals( 1, fired.size() );
+	}
+
+	@Test
+	public void aPastDeadlineFiresOnTheNextTick() {
+		wheel.advance( 50 );
+		wheel.schedule( wheel.newTimer( "late" ), 10 );
+
+		wheel.advance( 59 );
+		assertTrue( fired.isEmpty() );
+
+		wheel.advance( 60 );
+		assertEquals( Arrays.asList( "late" ), fired );
+	}
+
+	@Test
+	public void cancelledTimersDontFire() {
+		TimerWheel.Timer<String> a = wheel.newTimer( "a" );
+		TimerWheel.Timer<String> b = wheel.newTimer( "b" );
+		TimerWheel.Timer<String> c = wheel.newTimer( "c" );
+		wheel.schedule( a, 20 );
+		wheel.schedule( b, 20 );
+		wheel.schedule( c, 20 );
+
+		// Unlink from the middle of the bucket, then its head
+		wheel.cancel( b );
+		wheel.cancel( c );
+		wheel.cancel( c );
+
+		wheel.advance( 100 );
+		assertEquals( Arrays.asList( "a" ), fired );
+	}
+
+	@Test
+	public void timersBeyondARevolutionWait() {
+		// Eight ticks of ten make a revolution, 130 shares a bucket with 50
+		wheel.schedule( wheel.newTimer( "near" ), 50 );
+		wheel.schedule( wheel.newTimer( "far" ), 130 );
+
+		wheel.advance( 50 );
+		assertEquals( Arrays.asList( "near" ), fired );
+
+		wheel.advance( 129 );
+		assertEquals( Arrays.asList( "near" ), fired );
+
+		wheel.advance( 130 );
+		assertEquals( Arrays.asList( "near", "far" ), fired );
+	}
+
+	@Test
+	public void reschedulingMovesTheTimer() {
+		TimerWheel.Timer<String> timer = wheel.newTimer( "a" );
+		wheel.schedule( timer, 20 );
+		wheel.schedule( timer, 70 );
+
+		wheel.advance( 60 );
+		assertTrue( fired.isEmpty() );
+
+		wheel.advance( 70 );
+		assertEquals( Arrays.asList( "a" ), fired );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void rejectsAWheelSizeThatIsNotAPowerOfTwo() {
+		new TimerWheel<String>( TICK, 12, 0, fired::add );
+	}
+}